@@ -18,8 +18,19 @@ package com.samsung.lib.requestserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 
 /**
@@ -41,13 +52,89 @@ public class AsyncRequestSerializer<T> {
 
   private AsyncRequestSerializerConfig asyncRequestSerializerConfig;
 
+  private final OffsetWatermarkTracker offsetWatermarkTracker;
+
+  /*
+   * Last submitted request of every request key having some request not yet done
+   */
+
+  /*
+   * Delayed requests of every request key, not yet enqueued into its stream
+   */
+  private final Map<String, Set<DelayedRequest>> delayedRequests = new ConcurrentHashMap<>();
+
+  /*
+   * Results of cacheable works, null if disabled
+   */
+  private final ResultCache<T> resultCache;
+
+  private volatile boolean isShutdown;
+
+  /*
+   * Namespace of request keys in shared worker runtime, null if this instance owns its pool
+   */
+  private final String namespace;
+  private final WorkerRuntime workerRuntime;
+
   public AsyncRequestSerializer(AsyncRequestSerializerConfig config) {
     this.asyncRequestSerializerConfig = config;
     LOGGER.debug("Initialized AsyncRequestSerializer");
     poolableWorkerThreadPool = new PoolableWorkerThreadPool<>(asyncRequestSerializerConfig);
+    offsetWatermarkTracker = new OffsetWatermarkTracker(asyncRequestSerializerConfig.offsetCommitListener);
+    namespace = null;
+    workerRuntime = null;
+    resultCache = newResultCache(asyncRequestSerializerConfig);
     LOGGER.debug("Initialized AsyncRequestSerializer - [OK]");
   }
 
+  /**
+   * Attach to a worker thread pool shared with other instances, configured by worker runtime.
+   * Committable offsets are notified to {@link OffsetCommitListener#commit(String, int, long)} of
+   * runtime configuration, along with namespace.
+   *
+   * @param workerRuntime - shared worker runtime
+   * @param namespace - namespace of request keys of this instance, unique in worker runtime
+   * @throws IllegalArgumentException - if namespace is already attached, and not yet shut down
+   */
+  public AsyncRequestSerializer(WorkerRuntime workerRuntime, String namespace) {
+    this(workerRuntime, namespace, null);
+  }
+
+  /**
+   * Attach to a worker thread pool shared with other instances, with configuration of its own. Options
+   * of this instance (submit retries, offset commit listener, result cache) are taken from given
+   * configuration. Retry policy, dead letter sink and rate limits, if set in given configuration,
+   * replace those of worker runtime for request keys of this namespace, and see request keys without
+   * namespace prefix. Options of pool and its scheduling are ignored.
+   *
+   * @param workerRuntime - shared worker runtime
+   * @param namespace - namespace of request keys of this instance, unique in worker runtime
+   * @param namespaceConfig - configuration of this instance, null to follow worker runtime
+   * @throws IllegalArgumentException - if namespace is already attached, and not yet shut down
+   */
+  @SuppressWarnings("unchecked")
+  public AsyncRequestSerializer(WorkerRuntime workerRuntime, String namespace,
+      AsyncRequestSerializerConfig namespaceConfig) {
+    workerRuntime.attach(namespace, namespaceConfig);
+    this.workerRuntime = workerRuntime;
+    // pool never looks into results, so it serves any result type
+    poolableWorkerThreadPool = (PoolableWorkerThreadPool<T>) (PoolableWorkerThreadPool<?>) workerRuntime
+        .poolableWorkerThreadPool;
+    if (namespaceConfig == null) {
+      this.asyncRequestSerializerConfig = workerRuntime.asyncRequestSerializerConfig;
+      OffsetCommitListener offsetCommitListener = asyncRequestSerializerConfig.offsetCommitListener;
+      // partitions of namespaces sharing listener are told apart by namespace
+      offsetWatermarkTracker = new OffsetWatermarkTracker(offsetCommitListener == null ? null
+          : (partition, offset) -> offsetCommitListener.commit(namespace, partition, offset));
+    } else {
+      this.asyncRequestSerializerConfig = namespaceConfig;
+      offsetWatermarkTracker = new OffsetWatermarkTracker(namespaceConfig.offsetCommitListener);
+    }
+    this.namespace = namespace;
+    resultCache = newResultCache(asyncRequestSerializerConfig);
+    LOGGER.debug("Initialized AsyncRequestSerializer attached to worker runtime as namespace {}", namespace);
+  }
+
   /**
    * This function allows client application to submit AE request.
    * Please note this function is synchronized so if multiple thread submits
@@ -63,33 +150,94 @@ public class AsyncRequestSerializer<T> {
    * @throws Exception - In case something fails or bad parameter is passed
    */
   public synchronized <U extends Work<T>> Future<T> submit(final String requestKey, final U request) throws Exception {
+    ResultCache.Entry<T> cached = getCachedResult(requestKey, request);
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached.getResult());
+    }
+    return submitRequest(requestKey, request);
+  }
+
+  /**
+   * Submit a request read from a partitioned log, see {@link #submit(String, Work)}. Once this request
+   * and every earlier request of its partition is processed, offset is committable, and
+   * {@link OffsetCommitListener} (if configured) is notified. Requests of a partition should be
+   * submitted in order of their offsets. A cancelled request is never taken as processed, so watermark
+   * stays below it, while a rejected one (i.e. this call throws) is taken as never submitted.
+   *
+   * @param requestKey - request key is for current request (Should not be null)
+   * @param request - an instance of {@link Work} (Should not be null)
+   * @param partition - partition of log request is read from
+   * @param offset - offset of request in its partition
+   * @throws Exception - In case something fails or bad parameter is passed
+   */
+  public synchronized <U extends Work<T>> Future<T> submit(final String requestKey, final U request,
+      final int partition, final long offset) throws Exception {
+    offsetWatermarkTracker.track(partition, offset);
+    ResultCache.Entry<T> cached = getCachedResult(requestKey, request);
+    if (cached != null) {
+      offsetWatermarkTracker.complete(partition, offset);
+      return CompletableFuture.completedFuture(cached.getResult());
+    }
+    RequestFuture<T> requestTask;
+    try {
+      requestTask = submitRequest(requestKey, request);
+    } catch (Exception exception) {
+      // rejected record is not pending, watermark should not wait for it
+      offsetWatermarkTracker.untrack(partition, offset);
+      throw exception;
+    }
+    requestTask.whenDone(() -> {
+      // cancelled record never ran, so watermark stays below it
+      if (!requestTask.isCancelled()) {
+        offsetWatermarkTracker.complete(partition, offset);
+      }
+    });
+    return requestTask;
+  }
+
+  /**
+   * @return - highest offset of partition, such that it and every earlier offset is processed, -1 if
+   *         none
+   */
+  public long getCommittedOffset(final int partition) {
+    return offsetWatermarkTracker.getCommittedOffset(partition);
+  }
+
+  /**
+   * Same as {@link #submit(String, Work)}, returns request task so that callers in this package can
+   * act upon its completion.
+   */
+  synchronized RequestFuture<T> submitRequest(final String requestKey, final Work<T> request) throws Exception {
 
     // Parameter sanity check
     Objects.requireNonNull(requestKey, "Request key is mandatory field");
     Objects.requireNonNull(request, "Submitted request itself is null");
+    if (isShutdown) {
+      throw new AsyncRequestSerializerException("Request serializer is shut down");
+    }
 
     LOGGER.debug("Assigning request to mapped worker thread");
     LOGGER.debug("Requesting worker thread for request-key {} from pool", requestKey);
     LOGGER.debug("Requesting worker thread for request-key {} from pool - [OK]", requestKey);
     int submitRetryCount = asyncRequestSerializerConfig.submitRetryCount;
 
+    String runtimeRequestKey = toRuntimeRequestKey(requestKey);
+    long readSequence = cacheRequest(requestKey, request);
+
     // Get thread, give it a name and assign request
-    PoolableWorkerThread<T> poolableWorkerThread = poolableWorkerThreadPool.getPoolableWorkerThread(requestKey);
-    LOGGER.debug("Received Worker Thread {} against request key {}", poolableWorkerThread.getName(), requestKey);
-    Future<T> result = poolableWorkerThread.assign(request);
+    RequestFuture<T> result = poolableWorkerThreadPool.assign(runtimeRequestKey, request);
 
     // null return from assign method indicates, that by the time assign was
     // called The worker thread may have released itself into queue.
     while (submitRetryCount > 0 && result == null) {
-      LOGGER.warn("Failed to submit request to worker thread {}, will try {} more times",
-          poolableWorkerThread.getName(), submitRetryCount);
+      LOGGER.warn("Failed to submit request of request-key {}, will try {} more times",
+          requestKey, submitRetryCount);
       --submitRetryCount;
 
       //  Sleep, Get thread, give it a name and assign request, if not success repeat.
       Thread.sleep(asyncRequestSerializerConfig.submitRetryDelay);
       LOGGER.debug("Requesting worker thread for request-key {} again from pool", requestKey);
-      poolableWorkerThread = poolableWorkerThreadPool.getPoolableWorkerThread(requestKey);
-      result = poolableWorkerThread.assign(request);
+      result = poolableWorkerThreadPool.assign(runtimeRequestKey, request);
       if (result != null) {
         LOGGER.debug("Requesting worker thread for request-key {} again from pool - [OK]", requestKey);
       }
@@ -100,6 +248,323 @@ public class AsyncRequestSerializer<T> {
       throw new AsyncRequestSerializerException("Error submitting request");
     }
     LOGGER.debug("Assigning request to mapped worker thread - [OK]");
+    if (readSequence >= 0) {
+      cacheResult(requestKey, (CacheableWork<T>) request, readSequence, result);
+    }
     return result;
   }
+
+  /**
+   * Same as {@link #submitRequest(String, Work)}, however never waits for a worker thread, see
+   * {@link PoolableWorkerThreadPool#enqueue(String, Work)}. So it can be called from completion of
+   * another request.
+   */
+  RequestFuture<T> enqueueRequest(final String requestKey, final Work<T> request) throws Exception {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    Objects.requireNonNull(request, "Submitted request itself is null");
+    if (isShutdown) {
+      throw new AsyncRequestSerializerException("Request serializer is shut down");
+    }
+    long readSequence = cacheRequest(requestKey, request);
+    RequestFuture<T> requestTask = poolableWorkerThreadPool.enqueue(toRuntimeRequestKey(requestKey), request);
+    if (readSequence >= 0) {
+      cacheResult(requestKey, (CacheableWork<T>) request, readSequence, requestTask);
+    }
+    return requestTask;
+  }
+
+  private static <T> ResultCache<T> newResultCache(final AsyncRequestSerializerConfig config) {
+    return config.resultCacheSize > 0 ? new ResultCache<>(config.resultCacheSize) : null;
+  }
+
+  /**
+   * @return - valid cached result of request if it is a cacheable read, null otherwise
+   */
+  private ResultCache.Entry<T> getCachedResult(final String requestKey, final Work<T> request) {
+    if (resultCache == null || isShutdown || !(request instanceof CacheableWork) || requestKey == null) {
+      return null;
+    }
+    ResultCache.Entry<T> cached = resultCache.get(requestKey, ((CacheableWork<T>) request).getCacheKey());
+    if (cached != null) {
+      LOGGER.debug("Request of request-key {} served from result cache", requestKey);
+    }
+    return cached;
+  }
+
+  /**
+   * Invalidate cached results of request key if request is a write, to be called before it is
+   * enqueued.
+   *
+   * @return - sequence of request if it is a cacheable read, -1 otherwise
+   */
+  private long cacheRequest(final String requestKey, final Work<T> request) {
+    if (resultCache == null) {
+      return -1;
+    }
+    if (request instanceof CacheableWork) {
+      return resultCache.getSequence();
+    }
+    resultCache.invalidate(requestKey);
+    return -1;
+  }
+
+  private void cacheResult(final String requestKey, final CacheableWork<T> request, final long readSequence,
+      final RequestFuture<T> requestTask) {
+    requestTask.whenDone(() -> {
+      if (requestTask.isCancelled()) {
+        return;
+      }
+      try {
+        resultCache.put(requestKey, request.getCacheKey(), readSequence, requestTask.get());
+      } catch (ExecutionException executionException) {
+        LOGGER.debug("Request of request-key {} failed, not caching its result", requestKey);
+      } catch (InterruptedException interruptedException) {
+        // task is done, so get never waits
+        Thread.currentThread().interrupt();
+      }
+    });
+  }
+
+  /**
+   * Submit a request to be enqueued into stream of its request key after given delay, instead of
+   * right away. It is then processed in order with requests of same request key enqueued so far, see
+   * {@link #submit(String, Work)}. Delays are kept by a timing wheel, with precision of
+   * {@link AsyncRequestSerializerConfig.Builder#setTimerTickDuration(int)}. This call never blocks.
+   *
+   * @param requestKey - request key is for current request (Should not be null)
+   * @param request - an instance of {@link Work} (Should not be null)
+   * @param delay - delay in ms.
+   * @return - future of request, cancelled if request is cancelled while still delayed
+   * @throws Exception - In case something fails or bad parameter is passed
+   */
+  public CompletableFuture<T> submitDelayed(final String requestKey, final Work<T> request, final long delay)
+      throws Exception {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    Objects.requireNonNull(request, "Submitted request itself is null");
+    if (isShutdown) {
+      throw new AsyncRequestSerializerException("Request serializer is shut down");
+    }
+    DelayedRequest delayedRequest = new DelayedRequest(requestKey, request);
+    delayedRequests.compute(requestKey, (key, requests) -> {
+      Set<DelayedRequest> keyDelayedRequests = requests == null ? ConcurrentHashMap.newKeySet() : requests;
+      keyDelayedRequests.add(delayedRequest);
+      return keyDelayedRequests;
+    });
+    delayedRequest.timeout = poolableWorkerThreadPool.schedule(delayedRequest, delay);
+    LOGGER.debug("Request of request-key {} delayed by {} ms.", requestKey, delay);
+    return delayedRequest.result;
+  }
+
+  /**
+   * Cancel all delayed requests of a request key not yet enqueued, their futures are cancelled.
+   *
+   * @param requestKey - request key (Should not be null)
+   * @return - number of requests cancelled
+   */
+  public int cancelDelayed(final String requestKey) {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    Set<DelayedRequest> keyDelayedRequests = delayedRequests.remove(requestKey);
+    if (keyDelayedRequests == null) {
+      return 0;
+    }
+    // once removed, none of them gets enqueued, even if already expired
+    for (DelayedRequest delayedRequest : keyDelayedRequests) {
+      HierarchicalTimingWheel.Timeout timeout = delayedRequest.timeout;
+      if (timeout != null) {
+        timeout.cancel();
+      }
+      delayedRequest.result.cancel(false);
+    }
+    LOGGER.debug("Cancelled {} delayed requests of request-key {}", keyDelayedRequests.size(), requestKey);
+    return keyDelayedRequests.size();
+  }
+
+  /**
+   * Barrier for a request key, returned future completes once every request of request key submitted
+   * before this call is done. Requests submitted afterwards are processed as usual. This call never
+   * blocks.
+   *
+   * @param requestKey - request key to flush (Should not be null)
+   * @throws Exception - In case something fails or bad parameter is passed
+   */
+  public synchronized CompletableFuture<Void> flush(final String requestKey) throws Exception {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    CompletableFuture<Void> flushed = new CompletableFuture<>();
+    String runtimeRequestKey = toRuntimeRequestKey(requestKey);
+    if (!poolableWorkerThreadPool.isRequestKeyActive(runtimeRequestKey)) {
+      LOGGER.debug("Nothing pending for request-key {}, already flushed", requestKey);
+      flushed.complete(null);
+      return flushed;
+    }
+    // requests of a request key are done in order, so once a no-op request queued last is done, so is
+    // every earlier one. It never waits for a worker thread, so flush does not block on a busy pool.
+    RequestFuture<T> barrier = poolableWorkerThreadPool.enqueue(runtimeRequestKey, new BarrierWork<>());
+    barrier.whenDone(() -> flushed.complete(null));
+    return flushed;
+  }
+
+  /**
+   * Barrier for all request keys, returned future completes once every request submitted before this
+   * call is done, see {@link #flush(String)}.
+   *
+   * @throws Exception - In case something fails
+   */
+  public synchronized CompletableFuture<Void> flushAll() throws Exception {
+    List<CompletableFuture<Void>> flushes = new ArrayList<>();
+    for (String runtimeRequestKey : poolableWorkerThreadPool.getActiveRequestKeys()) {
+      if (namespace == null) {
+        flushes.add(flush(runtimeRequestKey));
+      } else if (namespace.equals(WorkerRuntime.getNamespace(runtimeRequestKey))) {
+        flushes.add(flush(WorkerRuntime.toNamespaceRequestKey(runtimeRequestKey)));
+      }
+    }
+    LOGGER.debug("Flushing {} request keys", flushes.size());
+    return CompletableFuture.allOf(flushes.toArray(new CompletableFuture<?>[0]));
+  }
+
+  /**
+   * Shut down this request serializer. New requests are rejected, and requests submitted so far are
+   * drained within given time. Then requests not yet started are cancelled, and worker threads die
+   * once done with request being run. If attached to a shared {@link WorkerRuntime}, only draining is
+   * done and namespace is released, pool is shut down by {@link WorkerRuntime#shutdown()}.
+   *
+   * @param timeout - time in ms. to wait for submitted requests to complete
+   * @return - true if all submitted requests completed in time
+   * @throws Exception - In case something fails
+   */
+  public boolean shutdown(final long timeout) throws Exception {
+    CompletableFuture<Void> drained;
+    synchronized (this) {
+      isShutdown = true;
+      for (String requestKey : new ArrayList<>(delayedRequests.keySet())) {
+        cancelDelayed(requestKey);
+      }
+      drained = flushAll();
+    }
+    boolean completed = true;
+    try {
+      drained.get(timeout, TimeUnit.MILLISECONDS);
+      LOGGER.info("All submitted requests are done, shutting down");
+    } catch (TimeoutException timeoutException) {
+      LOGGER.warn("Submitted requests are not done in {} ms., shutting down anyway", timeout);
+      completed = false;
+    } catch (ExecutionException executionException) {
+      // barriers never fail
+      LOGGER.error("Error while draining submitted requests", executionException);
+      completed = false;
+    }
+    if (workerRuntime == null) {
+      poolableWorkerThreadPool.shutdown();
+    } else {
+      workerRuntime.detach(namespace);
+    }
+    return completed;
+  }
+
+  private String toRuntimeRequestKey(final String requestKey) {
+    return namespace == null ? requestKey : WorkerRuntime.toRuntimeRequestKey(namespace, requestKey);
+  }
+
+  /**
+   * Request keys detected as hot, i.e. having large share of submitted requests. Each of them is
+   * pinned to a dedicated worker thread. Detection is enabled by
+   * {@link AsyncRequestSerializerConfig.Builder#setHotRequestKeyCount(int)}.
+   *
+   * @return - hot request keys, most frequent first, with their submit rate (per second)
+   */
+  public Map<String, Double> getHotRequestKeys() {
+    Map<String, Double> hotRequestKeys = poolableWorkerThreadPool.getHotRequestKeys();
+    if (namespace == null) {
+      return hotRequestKeys;
+    }
+    String prefix = WorkerRuntime.toRuntimeRequestKey(namespace, "");
+    Map<String, Double> namespaceHotRequestKeys = new LinkedHashMap<>();
+    hotRequestKeys.forEach((runtimeRequestKey, rate) -> {
+      if (runtimeRequestKey.startsWith(prefix)) {
+        namespaceHotRequestKeys.put(runtimeRequestKey.substring(prefix.length()), rate);
+      }
+    });
+    return namespaceHotRequestKeys;
+  }
+
+  /**
+   * Number of cacheable works served from result cache, enabled by
+   * {@link AsyncRequestSerializerConfig.Builder#setResultCacheSize(int)}.
+   */
+  public long getCacheHitCount() {
+    return resultCache == null ? 0 : resultCache.getHitCount();
+  }
+
+  /**
+   * Number of cacheable works not found in result cache, and so dispatched to a worker thread.
+   */
+  public long getCacheMissCount() {
+    return resultCache == null ? 0 : resultCache.getMissCount();
+  }
+
+  /**
+   * @return - share of cacheable works served from result cache, 0 if none is submitted
+   */
+  public double getCacheHitRate() {
+    long hitCount = getCacheHitCount();
+    long total = hitCount + getCacheMissCount();
+    return total == 0 ? 0 : (double) hitCount / total;
+  }
+
+  /**
+   * Number of pending works held in spill store, enabled by
+   * {@link AsyncRequestSerializerConfig.Builder#setSpillDirectory(java.nio.file.Path)}.
+   */
+  public long getSpilledRequestCount() {
+    return poolableWorkerThreadPool.getSpilledRequestCount();
+  }
+
+  /**
+   * Request waiting on timing wheel, enqueued once expired unless cancelled.
+   */
+  private final class DelayedRequest implements Runnable {
+    private final String requestKey;
+    private final Work<T> request;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+    private volatile HierarchicalTimingWheel.Timeout timeout;
+
+    private DelayedRequest(final String requestKey, final Work<T> request) {
+      this.requestKey = requestKey;
+      this.request = request;
+    }
+
+    @Override
+    public void run() {
+      boolean[] isPending = new boolean[1];
+      delayedRequests.computeIfPresent(requestKey, (key, requests) -> {
+        isPending[0] = requests.remove(this);
+        return requests.isEmpty() ? null : requests;
+      });
+      if (!isPending[0]) {
+        LOGGER.debug("Delayed request of request-key {} is cancelled", requestKey);
+        return;
+      }
+      RequestFuture<T> requestTask;
+      try {
+        // runs on timing wheel thread, so never waits for a worker thread
+        requestTask = enqueueRequest(requestKey, request);
+      } catch (Exception exception) {
+        LOGGER.error("Failed to enqueue delayed request of request-key {}", requestKey, exception);
+        result.completeExceptionally(exception);
+        return;
+      }
+      requestTask.whenDone(() -> {
+        try {
+          result.complete(requestTask.get());
+        } catch (CancellationException cancellationException) {
+          result.cancel(false);
+        } catch (ExecutionException executionException) {
+          result.completeExceptionally(executionException.getCause());
+        } catch (InterruptedException interruptedException) {
+          // task is done, so get never waits
+          Thread.currentThread().interrupt();
+        }
+      });
+    }
+  }
 }
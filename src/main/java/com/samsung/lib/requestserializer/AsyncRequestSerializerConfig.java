@@ -15,18 +15,101 @@
  */
 package com.samsung.lib.requestserializer;
 
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
 
 public class AsyncRequestSerializerConfig {
   final int submitRetryCount;
   final int submitRetryDelay;
   final int workerThreadPoolSize;
   final int localRequestQueueTimeOut;
+  final int requestKeyStateMaxSize;
+  final int requestKeyStateExpiry;
+  final int hotRequestKeyCount;
+  final double hotRequestKeyThreshold;
+  final int hotRequestKeyWindow;
+  final boolean workerThreadSharing;
+  final boolean workStealing;
+  final int clusterVirtualNodeCount;
+  final OffsetCommitListener offsetCommitListener;
+  final RetryPolicy retryPolicy;
+  final DeadLetterSink deadLetterSink;
+  final RateLimit globalRateLimit;
+  final RateLimit rateLimit;
+  final Map<String, RateLimit> rateLimits;
+  final Function<String, String> rateLimitKeyFunction;
+  final FairSchedulingPolicy fairSchedulingPolicy;
+  final Path spillDirectory;
+  final int spillThreshold;
+  final int spillSegmentSize;
+  final RequestKeyGroupPolicy requestKeyGroupPolicy;
+  final int timerTickDuration;
+  final int resultCacheSize;
 
   private AsyncRequestSerializerConfig(Builder builder) {
     this.submitRetryCount = builder.submitRetryCount;
     this.submitRetryDelay = builder.submitRetryDelay;
     this.workerThreadPoolSize = builder.workerThreadPoolSize;
     this.localRequestQueueTimeOut = builder.localRequestQueueTimeOut;
+    this.requestKeyStateMaxSize = builder.requestKeyStateMaxSize;
+    this.requestKeyStateExpiry = builder.requestKeyStateExpiry;
+    this.hotRequestKeyCount = builder.hotRequestKeyCount;
+    this.hotRequestKeyThreshold = builder.hotRequestKeyThreshold;
+    this.hotRequestKeyWindow = builder.hotRequestKeyWindow;
+    this.workerThreadSharing = builder.workerThreadSharing;
+    this.workStealing = builder.workStealing;
+    this.clusterVirtualNodeCount = builder.clusterVirtualNodeCount;
+    this.offsetCommitListener = builder.offsetCommitListener;
+    this.retryPolicy = builder.retryPolicy;
+    this.deadLetterSink = builder.deadLetterSink;
+    this.globalRateLimit = builder.globalRateLimit;
+    this.rateLimit = builder.rateLimit;
+    this.rateLimits = Collections.unmodifiableMap(new HashMap<>(builder.rateLimits));
+    this.rateLimitKeyFunction = builder.rateLimitKeyFunction;
+    this.fairSchedulingPolicy = builder.fairSchedulingPolicy;
+    this.spillDirectory = builder.spillDirectory;
+    this.spillThreshold = builder.spillThreshold;
+    this.spillSegmentSize = builder.spillSegmentSize;
+    this.requestKeyGroupPolicy = builder.requestKeyGroupPolicy;
+    this.timerTickDuration = builder.timerTickDuration;
+    this.resultCacheSize = builder.resultCacheSize;
+  }
+
+  /**
+   * @return - builder initialized with this configuration
+   */
+  Builder toBuilder() {
+    Builder builder = new Builder();
+    builder.submitRetryCount = submitRetryCount;
+    builder.submitRetryDelay = submitRetryDelay;
+    builder.workerThreadPoolSize = workerThreadPoolSize;
+    builder.localRequestQueueTimeOut = localRequestQueueTimeOut;
+    builder.requestKeyStateMaxSize = requestKeyStateMaxSize;
+    builder.requestKeyStateExpiry = requestKeyStateExpiry;
+    builder.hotRequestKeyCount = hotRequestKeyCount;
+    builder.hotRequestKeyThreshold = hotRequestKeyThreshold;
+    builder.hotRequestKeyWindow = hotRequestKeyWindow;
+    builder.workerThreadSharing = workerThreadSharing;
+    builder.workStealing = workStealing;
+    builder.clusterVirtualNodeCount = clusterVirtualNodeCount;
+    builder.offsetCommitListener = offsetCommitListener;
+    builder.retryPolicy = retryPolicy;
+    builder.deadLetterSink = deadLetterSink;
+    builder.globalRateLimit = globalRateLimit;
+    builder.rateLimit = rateLimit;
+    builder.rateLimits = rateLimits;
+    builder.rateLimitKeyFunction = rateLimitKeyFunction;
+    builder.fairSchedulingPolicy = fairSchedulingPolicy;
+    builder.spillDirectory = spillDirectory;
+    builder.spillThreshold = spillThreshold;
+    builder.spillSegmentSize = spillSegmentSize;
+    builder.requestKeyGroupPolicy = requestKeyGroupPolicy;
+    builder.timerTickDuration = timerTickDuration;
+    builder.resultCacheSize = resultCacheSize;
+    return builder;
   }
 
   public static class Builder {
@@ -34,6 +117,28 @@ public class AsyncRequestSerializerConfig {
     private int submitRetryDelay = 150;
     private int workerThreadPoolSize = 32;
     private int localRequestQueueTimeOut = 100;
+    private int requestKeyStateMaxSize = 100000;
+    private int requestKeyStateExpiry = 0;
+    private int hotRequestKeyCount = 0;
+    private double hotRequestKeyThreshold = 0.01;
+    private int hotRequestKeyWindow = 1000;
+    private boolean workerThreadSharing = false;
+    private boolean workStealing = false;
+    private int clusterVirtualNodeCount = 128;
+    private OffsetCommitListener offsetCommitListener;
+    private RetryPolicy retryPolicy;
+    private DeadLetterSink deadLetterSink;
+    private RateLimit globalRateLimit;
+    private RateLimit rateLimit;
+    private Map<String, RateLimit> rateLimits = new HashMap<>();
+    private Function<String, String> rateLimitKeyFunction = Function.identity();
+    private FairSchedulingPolicy fairSchedulingPolicy;
+    private Path spillDirectory;
+    private int spillThreshold = 10000;
+    private int spillSegmentSize = 64 * 1024 * 1024;
+    private RequestKeyGroupPolicy requestKeyGroupPolicy;
+    private int timerTickDuration = 10;
+    private int resultCacheSize;
 
     public Builder setSubmitRetryCount(int submitRetryCount) {
       this.submitRetryCount = submitRetryCount;
@@ -55,6 +160,211 @@ public class AsyncRequestSerializerConfig {
       return this;
     }
 
+    /**
+     * Maximum number of request key states kept for {@link StatefulWork}, approximately least
+     * recently used state is evicted beyond it.
+     */
+    public Builder setRequestKeyStateMaxSize(int requestKeyStateMaxSize) {
+      this.requestKeyStateMaxSize = requestKeyStateMaxSize;
+      return this;
+    }
+
+    /**
+     * Time in ms. after which state of a request key is evicted, if not accessed. 0 means never.
+     */
+    public Builder setRequestKeyStateExpiry(int requestKeyStateExpiry) {
+      this.requestKeyStateExpiry = requestKeyStateExpiry;
+      return this;
+    }
+
+    /**
+     * Maximum number of hot request keys, which are pinned to a dedicated worker thread (never
+     * released into pool while hot). 0 disables hot request key detection. It is capped to one less
+     * than worker thread pool size.
+     */
+    public Builder setHotRequestKeyCount(int hotRequestKeyCount) {
+      this.hotRequestKeyCount = hotRequestKeyCount;
+      return this;
+    }
+
+    /**
+     * Minimum share (0 to 1) of submitted requests in a window, for a request key to be hot.
+     */
+    public Builder setHotRequestKeyThreshold(double hotRequestKeyThreshold) {
+      this.hotRequestKeyThreshold = hotRequestKeyThreshold;
+      return this;
+    }
+
+    /**
+     * Time in ms. after which hot request keys are re-evaluated.
+     */
+    public Builder setHotRequestKeyWindow(int hotRequestKeyWindow) {
+      this.hotRequestKeyWindow = hotRequestKeyWindow;
+      return this;
+    }
+
+    /**
+     * If enabled, a new request key is mapped to less loaded of two active worker threads (by their
+     * queue depth and average work time) along with their current request keys, if it has nothing to
+     * do or all worker threads are mapped. So submit is not blocked till a worker thread is returned
+     * into pool.
+     */
+    public Builder setWorkerThreadSharing(boolean workerThreadSharing) {
+      this.workerThreadSharing = workerThreadSharing;
+      return this;
+    }
+
+    /**
+     * If enabled, a worker thread running out of work steals pending requests of a request key from
+     * the most loaded worker thread, provided that request key is not being run. This is useful along
+     * with worker thread sharing, where a worker thread has more than one request key mapped.
+     */
+    public Builder setWorkStealing(boolean workStealing) {
+      this.workStealing = workStealing;
+      return this;
+    }
+
+    /**
+     * Number of virtual nodes per node on consistent hash ring of {@link ClusterRequestSerializer}.
+     */
+    public Builder setClusterVirtualNodeCount(int clusterVirtualNodeCount) {
+      this.clusterVirtualNodeCount = clusterVirtualNodeCount;
+      return this;
+    }
+
+    /**
+     * Listener notified as committable offset of a partition advances, see
+     * {@link AsyncRequestSerializer#submit(String, Work, int, long)}.
+     */
+    public Builder setOffsetCommitListener(OffsetCommitListener offsetCommitListener) {
+      this.offsetCommitListener = offsetCommitListener;
+      return this;
+    }
+
+    /**
+     * Policy to retry failed works, by default they are not retried.
+     */
+    public Builder setRetryPolicy(RetryPolicy retryPolicy) {
+      this.retryPolicy = retryPolicy;
+      return this;
+    }
+
+    /**
+     * Sink receiving permanently failed works.
+     */
+    public Builder setDeadLetterSink(DeadLetterSink deadLetterSink) {
+      this.deadLetterSink = deadLetterSink;
+      return this;
+    }
+
+    /**
+     * Rate limit of all requests together. A throttled request key gives up its worker thread till it
+     * may proceed.
+     */
+    public Builder setGlobalRateLimit(RateLimit globalRateLimit) {
+      this.globalRateLimit = globalRateLimit;
+      return this;
+    }
+
+    /**
+     * Rate limit of every rate limit key (see {@link #setRateLimitKeyFunction(Function)}), unless
+     * overridden by {@link #setRateLimits(Map)}.
+     */
+    public Builder setRateLimit(RateLimit rateLimit) {
+      this.rateLimit = rateLimit;
+      return this;
+    }
+
+    /**
+     * Rate limits of specific rate limit keys.
+     */
+    public Builder setRateLimits(Map<String, RateLimit> rateLimits) {
+      this.rateLimits = rateLimits;
+      return this;
+    }
+
+    /**
+     * Function mapping request key to rate limit key, i.e. request keys sharing a rate limit (e.g.
+     * tenant of request key "tenant/user"). By default every request key has its own rate limit.
+     */
+    public Builder setRateLimitKeyFunction(Function<String, String> rateLimitKeyFunction) {
+      this.rateLimitKeyFunction = rateLimitKeyFunction;
+      return this;
+    }
+
+    /**
+     * Interleave request keys sharing a worker thread by deficit round-robin, so that a request key
+     * with a deep backlog of expensive works does not hold back others. By default requests of a
+     * worker thread are run in order of submission. Useful along with worker thread sharing.
+     */
+    public Builder setFairSchedulingPolicy(FairSchedulingPolicy fairSchedulingPolicy) {
+      this.fairSchedulingPolicy = fairSchedulingPolicy;
+      return this;
+    }
+
+    /**
+     * Directory of segment files into which {@link java.io.Serializable} works are spilled, once
+     * backlog of a worker thread or detached request key is beyond spill threshold. Spilling is
+     * disabled by default.
+     * <p>
+     * A spilled work is run as a deserialized copy, so are objects it refers to (e.g. a counter or a
+     * list of results captured by it), and a {@link DeadLetterSink} receives that copy. So works which
+     * may be spilled should only communicate through their results.
+     * <p>
+     * Spilled requests of a request key are queued as one run of linked records, costing a few bytes
+     * of heap each besides their futures, if kept by caller. Request keys are striped over as many
+     * spill stores as worker threads, and segment files are deleted (and unmapped) once all their
+     * requests are taken.
+     */
+    public Builder setSpillDirectory(Path spillDirectory) {
+      this.spillDirectory = spillDirectory;
+      return this;
+    }
+
+    /**
+     * Number of queued requests beyond which works of new requests are spilled, default 10000.
+     */
+    public Builder setSpillThreshold(int spillThreshold) {
+      this.spillThreshold = spillThreshold;
+      return this;
+    }
+
+    /**
+     * Size in bytes of a spill segment file, default 64 MB.
+     */
+    public Builder setSpillSegmentSize(int spillSegmentSize) {
+      this.spillSegmentSize = spillSegmentSize;
+      return this;
+    }
+
+    /**
+     * Limit worker threads held by a group of request keys, and requests waiting for them. By default
+     * request keys are not grouped.
+     */
+    public Builder setRequestKeyGroupPolicy(RequestKeyGroupPolicy requestKeyGroupPolicy) {
+      this.requestKeyGroupPolicy = requestKeyGroupPolicy;
+      return this;
+    }
+
+    /**
+     * Tick duration in ms. of timing wheel, which runs delayed requests, retries and rate limited
+     * request keys, i.e. their precision. Default 10 ms.
+     */
+    public Builder setTimerTickDuration(int timerTickDuration) {
+      this.timerTickDuration = timerTickDuration;
+      return this;
+    }
+
+    /**
+     * Max number of cached results of {@link CacheableWork}, evicting least recently used. Cached
+     * results of a request key are invalidated once any other work of it is submitted. Default 0, i.e.
+     * disabled.
+     */
+    public Builder setResultCacheSize(int resultCacheSize) {
+      this.resultCacheSize = resultCacheSize;
+      return this;
+    }
+
     public AsyncRequestSerializerConfig build() {
       return new AsyncRequestSerializerConfig(this);
     }
@@ -0,0 +1,46 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A {@link Work} which completes asynchronously, e.g. a work issuing non-blocking I/O.
+ * <p>
+ * The worker thread only calls {@link #callAsync()} to start the work. Till returned
+ * {@link CompletionStage} completes, the request key stays serialized (later requests of same
+ * request key are held back), however the worker thread itself is released to serve other request
+ * keys.
+ *
+ * @param <U> - result type of work
+ */
+public interface AsyncWork<U> extends Work<U> {
+
+  /**
+   * Start the work, this should not block.
+   *
+   * @return - a stage which completes with result of this work (Should not be null)
+   */
+  CompletionStage<U> callAsync();
+
+  /**
+   * Blocking variant, used only if this work is run outside request serializer.
+   */
+  @Override
+  default U call() throws Exception {
+    return callAsync().toCompletableFuture().get();
+  }
+}
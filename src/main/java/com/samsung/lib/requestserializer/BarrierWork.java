@@ -0,0 +1,28 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * A no-op work submitted by {@link AsyncRequestSerializer#flush(String)}, it completes once every
+ * earlier request of its request key is done. It is never throttled by rate limits.
+ */
+class BarrierWork<U> implements Work<U> {
+
+  @Override
+  public U call() {
+    return null;
+  }
+}
@@ -0,0 +1,34 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * A {@link Work} which only reads, so that its result can be served from result cache of its request
+ * key, enabled by {@link AsyncRequestSerializerConfig.Builder#setResultCacheSize(int)}.
+ * <p>
+ * Works having same request key and equal cache key are expected to compute same result, as long as
+ * no other work of request key is submitted in between. Any work of request key which is not
+ * cacheable is taken as a write, and invalidates cached results of request key.
+ *
+ * @param <U> - result type of work
+ */
+public interface CacheableWork<U> extends Work<U> {
+
+  /**
+   * @return - identity of this read within its request key, having proper equals and hashCode
+   */
+  Object getCacheKey();
+}
@@ -0,0 +1,331 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A cluster layer in front of {@link AsyncRequestSerializer}, one instance per node. Request keys are
+ * assigned to nodes on a consistent hash ring, a request whose request key is owned by other node is
+ * forwarded to it by {@link ClusterTransport}.
+ * <p>
+ * When cluster membership changes, ownership of a request key moves only after its in-flight
+ * requests (submitted through this node) are processed. Requests submitted meanwhile are held, and
+ * forwarded to new owner in order once in-flight requests drain. As with {@link AsyncRequestSerializer},
+ * requests of a request key should be submitted through one node, by one thread at a time.
+ *
+ * @param <T> - result type of work
+ */
+public class ClusterRequestSerializer<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ClusterRequestSerializer.class);
+
+  private final String nodeId;
+  private final AsyncRequestSerializer<T> asyncRequestSerializer;
+  private final ClusterTransport<T> clusterTransport;
+  private final int virtualNodeCount;
+  /*
+   * Request keys with in-flight or held requests, and node they are routed to
+   */
+  private final Map<String, RequestKeyRoute<T>> requestKeyRouteMap = new HashMap<>();
+  /*
+   * Completion of in-flight requests is handled here, so that worker threads never wait for lock of
+   * this instance
+   */
+  private final ExecutorService handoffExecutor;
+  private ConsistentHashRing consistentHashRing;
+  private boolean isShutdown;
+
+  /**
+   * @param nodeId - id of this node
+   * @param nodeIds - ids of all nodes in cluster, including this node
+   * @param config - configuration of local {@link AsyncRequestSerializer}
+   * @param clusterTransport - transport to forward requests to other nodes
+   */
+  public ClusterRequestSerializer(final String nodeId, final Collection<String> nodeIds,
+      final AsyncRequestSerializerConfig config, final ClusterTransport<T> clusterTransport) {
+    this.nodeId = Objects.requireNonNull(nodeId, "Node id is mandatory field");
+    this.asyncRequestSerializer = new AsyncRequestSerializer<>(config);
+    this.clusterTransport = Objects.requireNonNull(clusterTransport, "Cluster transport is mandatory field");
+    this.virtualNodeCount = config.clusterVirtualNodeCount;
+    this.consistentHashRing = new ConsistentHashRing(new ArrayList<>(nodeIds), virtualNodeCount);
+    this.handoffExecutor = Executors.newSingleThreadExecutor(runnable -> {
+      Thread thread = new Thread(runnable, "ClusterRequestSerializer handoff " + nodeId);
+      thread.setDaemon(true);
+      return thread;
+    });
+    LOGGER.debug("Initialized ClusterRequestSerializer of node {} in cluster {}", nodeId, nodeIds);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  /**
+   * Change cluster membership, ownership of request keys moves as described in class documentation.
+   *
+   * @param nodeIds - ids of all nodes in cluster
+   */
+  public synchronized void setNodeIds(final Collection<String> nodeIds) {
+    LOGGER.info("Cluster membership of node {} changed to {}", nodeId, nodeIds);
+    consistentHashRing = new ConsistentHashRing(new ArrayList<>(nodeIds), virtualNodeCount);
+  }
+
+  /**
+   * @return - node currently owning given request key as per consistent hash ring
+   */
+  public synchronized String getOwnerNodeId(final String requestKey) {
+    return consistentHashRing.getNode(requestKey);
+  }
+
+  /**
+   * Submit request to node owning its request key, see {@link AsyncRequestSerializer#submit(String, Work)}.
+   * Lock of this instance is only held while routing request, not while it is submitted, so a submit
+   * waiting for a local worker thread does not hold back other request keys.
+   *
+   * @param requestKey - request key is for current request (Should not be null)
+   * @param request - an instance of {@link Work} (Should not be null)
+   * @throws Exception - In case something fails or bad parameter is passed
+   */
+  public <U extends Work<T>> Future<T> submit(final String requestKey, final U request) throws Exception {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    Objects.requireNonNull(request, "Submitted request itself is null");
+
+    String routeNodeId;
+    synchronized (this) {
+      if (isShutdown) {
+        throw new AsyncRequestSerializerException("Cluster request serializer is shut down");
+      }
+      String ownerNodeId = consistentHashRing.getNode(requestKey);
+      RequestKeyRoute<T> requestKeyRoute = requestKeyRouteMap.get(requestKey);
+      if (requestKeyRoute == null) {
+        requestKeyRoute = new RequestKeyRoute<>(ownerNodeId);
+        requestKeyRouteMap.put(requestKey, requestKeyRoute);
+      }
+      if (!requestKeyRoute.nodeId.equals(ownerNodeId) || requestKeyRoute.handingOff
+          || !requestKeyRoute.heldRequests.isEmpty()) {
+        LOGGER.debug("Ownership of request-key {} is moving from node {} to {}, holding request till in-flight "
+            + "requests drain", requestKey, requestKeyRoute.nodeId, ownerNodeId);
+        HeldRequest<T> heldRequest = new HeldRequest<>(request);
+        requestKeyRoute.heldRequests.add(heldRequest);
+        return heldRequest.result;
+      }
+      requestKeyRoute.inFlight++;
+      routeNodeId = requestKeyRoute.nodeId;
+    }
+    return dispatch(requestKey, routeNodeId, request);
+  }
+
+  /**
+   * Submit request to local {@link AsyncRequestSerializer} of this node, to be called by
+   * {@link ClusterTransport} on receiving a forwarded request.
+   */
+  public CompletableFuture<T> submitLocal(final String requestKey, final Work<T> request) throws Exception {
+    RequestFuture<T> requestTask = asyncRequestSerializer.submitRequest(requestKey, request);
+    CompletableFuture<T> result = new CompletableFuture<>();
+    requestTask.whenDone(() -> complete(result, requestTask));
+    return result;
+  }
+
+  /**
+   * Shut down this node. New requests are rejected, and requests submitted through this node (held
+   * ones included) are drained within given time, held ones still left are then cancelled. Then local
+   * {@link AsyncRequestSerializer} is shut down with time left, and handoff thread is stopped.
+   *
+   * @param timeout - time in ms. to wait for submitted requests to complete
+   * @return - true if all submitted requests completed in time
+   * @throws Exception - In case something fails
+   */
+  public boolean shutdown(final long timeout) throws Exception {
+    long deadline = System.currentTimeMillis() + timeout;
+    boolean completed;
+    synchronized (this) {
+      isShutdown = true;
+      long waitTime;
+      while (!requestKeyRouteMap.isEmpty() && (waitTime = deadline - System.currentTimeMillis()) > 0) {
+        wait(waitTime);
+      }
+      completed = requestKeyRouteMap.isEmpty();
+      if (!completed) {
+        LOGGER.warn("Requests of {} request keys are not done in {} ms., shutting down anyway",
+            requestKeyRouteMap.size(), timeout);
+        for (RequestKeyRoute<T> requestKeyRoute : requestKeyRouteMap.values()) {
+          HeldRequest<T> heldRequest;
+          while ((heldRequest = requestKeyRoute.heldRequests.poll()) != null) {
+            heldRequest.result.cancel(false);
+          }
+        }
+      }
+    }
+    completed &= asyncRequestSerializer.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+    handoffExecutor.shutdown();
+    if (!handoffExecutor.awaitTermination(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+      LOGGER.warn("Handoff thread of node {} is still busy, not waiting for it", nodeId);
+      handoffExecutor.shutdownNow();
+    }
+    LOGGER.info("Node {} is shut down", nodeId);
+    return completed;
+  }
+
+  /*
+   * Should be called without holding lock of this instance, as submitting may wait for a worker
+   * thread. In-flight count of request key should already count this request.
+   */
+  private CompletableFuture<T> dispatch(final String requestKey, final String routeNodeId, final Work<T> request)
+      throws Exception {
+    CompletableFuture<T> result;
+    try {
+      if (nodeId.equals(routeNodeId)) {
+        result = submitLocal(requestKey, request);
+      } else {
+        LOGGER.debug("Forwarding request of request-key {} to node {}", requestKey, routeNodeId);
+        result = clusterTransport.forward(routeNodeId, requestKey, request);
+      }
+    } catch (Exception exception) {
+      completed(requestKey);
+      throw exception;
+    }
+    result.whenComplete((value, failure) -> {
+      try {
+        handoffExecutor.execute(() -> completed(requestKey));
+      } catch (RejectedExecutionException rejectedExecutionException) {
+        // completed after shutdown timed out, nothing is handed off any more
+        LOGGER.debug("Request of request-key {} completed after node {} is shut down", requestKey, nodeId);
+      }
+    });
+    return result;
+  }
+
+  private void completed(final String requestKey) {
+    RequestKeyRoute<T> requestKeyRoute;
+    synchronized (this) {
+      requestKeyRoute = requestKeyRouteMap.get(requestKey);
+      // while handing off, route is cleaned up once all held requests are dispatched
+      if (--requestKeyRoute.inFlight > 0 || requestKeyRoute.handingOff) {
+        return;
+      }
+      if (requestKeyRoute.heldRequests.isEmpty()) {
+        removeRoute(requestKey);
+        return;
+      }
+      String ownerNodeId = consistentHashRing.getNode(requestKey);
+      LOGGER.info("In-flight requests of request-key {} drained, moving its ownership from node {} to {}",
+          requestKey, requestKeyRoute.nodeId, ownerNodeId);
+      requestKeyRoute.nodeId = ownerNodeId;
+      requestKeyRoute.handingOff = true;
+    }
+    handOff(requestKey, requestKeyRoute);
+  }
+
+  /**
+   * Dispatch held requests of request key in order, new requests are held meanwhile.
+   */
+  private void handOff(final String requestKey, final RequestKeyRoute<T> requestKeyRoute) {
+    while (true) {
+      HeldRequest<T> heldRequest;
+      String routeNodeId;
+      synchronized (this) {
+        heldRequest = requestKeyRoute.heldRequests.poll();
+        if (heldRequest == null) {
+          requestKeyRoute.handingOff = false;
+          if (requestKeyRoute.inFlight == 0) {
+            removeRoute(requestKey);
+          }
+          return;
+        }
+        requestKeyRoute.inFlight++;
+        routeNodeId = requestKeyRoute.nodeId;
+      }
+      CompletableFuture<T> result = heldRequest.result;
+      try {
+        dispatch(requestKey, routeNodeId, heldRequest.request).whenComplete((value, failure) -> {
+          if (failure == null) {
+            result.complete(value);
+          } else {
+            result.completeExceptionally(failure);
+          }
+        });
+      } catch (Exception exception) {
+        LOGGER.error("Error while handing over request of request-key " + requestKey, exception);
+        result.completeExceptionally(exception);
+      }
+    }
+  }
+
+  /*
+   * Should be called holding lock of this instance
+   */
+  private void removeRoute(final String requestKey) {
+    requestKeyRouteMap.remove(requestKey);
+    if (isShutdown && requestKeyRouteMap.isEmpty()) {
+      notifyAll();
+    }
+  }
+
+  private static <T> void complete(final CompletableFuture<T> result, final Future<T> future) {
+    try {
+      result.complete(future.get());
+    } catch (ExecutionException executionException) {
+      result.completeExceptionally(executionException.getCause());
+    } catch (CancellationException cancellationException) {
+      result.cancel(false);
+    } catch (InterruptedException interruptedException) {
+      // future is already done, so this should not happen
+      Thread.currentThread().interrupt();
+      result.completeExceptionally(interruptedException);
+    }
+  }
+
+  private static final class RequestKeyRoute<T> {
+    private String nodeId;
+    private int inFlight;
+    /*
+     * Held requests are being dispatched to new owner
+     */
+    private boolean handingOff;
+    private final Deque<HeldRequest<T>> heldRequests = new ArrayDeque<>();
+
+    RequestKeyRoute(String nodeId) {
+      this.nodeId = nodeId;
+    }
+  }
+
+  private static final class HeldRequest<T> {
+    private final Work<T> request;
+    private final CompletableFuture<T> result = new CompletableFuture<>();
+
+    HeldRequest(Work<T> request) {
+      this.request = request;
+    }
+  }
+}
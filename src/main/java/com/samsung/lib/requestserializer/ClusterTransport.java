@@ -0,0 +1,37 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Transport used by {@link ClusterRequestSerializer} to forward request to node owning its request
+ * key. Receiving side is expected to hand it over to
+ * {@link ClusterRequestSerializer#submitLocal(String, Work)} of that node.
+ *
+ * @param <T> - result type of work
+ */
+public interface ClusterTransport<T> {
+
+  /**
+   * @param nodeId - node to forward request to
+   * @param requestKey - request key of request
+   * @param request - request to forward
+   * @return - a future which completes with result of request, once processed by given node
+   * @throws Exception - In case request could not be forwarded
+   */
+  CompletableFuture<T> forward(String nodeId, String requestKey, Work<T> request) throws Exception;
+}
@@ -0,0 +1,70 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * An immutable consistent hash ring of nodes, each node is placed at a number of virtual nodes so
+ * that request keys are evenly spread, and only about 1/n of request keys move on adding or removing
+ * a node.
+ */
+class ConsistentHashRing {
+
+  private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+  private static final long FNV_PRIME = 0x100000001b3L;
+
+  private final TreeMap<Long, String> ring = new TreeMap<>();
+
+  ConsistentHashRing(final Collection<String> nodeIds, final int virtualNodeCount) {
+    for (String nodeId : nodeIds) {
+      for (int virtualNode = 0; virtualNode < virtualNodeCount; virtualNode++) {
+        ring.put(hash(nodeId + '#' + virtualNode), nodeId);
+      }
+    }
+  }
+
+  /**
+   * @return - node owning given request key
+   */
+  String getNode(final String requestKey) {
+    if (ring.isEmpty()) {
+      throw new AsyncRequestSerializerException("No node in cluster");
+    }
+    Map.Entry<Long, String> entry = ring.ceilingEntry(hash(requestKey));
+    return entry == null ? ring.firstEntry().getValue() : entry.getValue();
+  }
+
+  /*
+   * 64 bit FNV-1a, followed by a finalizer to spread similar keys across the ring
+   */
+  static long hash(final String key) {
+    long hash = FNV_OFFSET_BASIS;
+    for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+      hash ^= b & 0xff;
+      hash *= FNV_PRIME;
+    }
+    hash ^= hash >>> 33;
+    hash *= 0xff51afd7ed558ccdL;
+    hash ^= hash >>> 33;
+    hash *= 0xc4ceb9fe1a85ec53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * Receives works which failed permanently, i.e. failure is not retryable or all attempts allowed by
+ * {@link RetryPolicy} are exhausted.
+ */
+public interface DeadLetterSink {
+
+  /**
+   * Called on worker thread (or thread completing an {@link AsyncWork}), before future of request
+   * completes exceptionally.
+   *
+   * @param requestKey - request key of failed request
+   * @param request - failed request
+   * @param failure - failure of last attempt
+   */
+  void accept(String requestKey, Work<?> request, Throwable failure);
+}
@@ -0,0 +1,174 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Local request queue of a worker thread, which hands out requests of its request keys by deficit
+ * round-robin (see {@link FairSchedulingPolicy}). Not thread safe, guarded by worker thread.
+ * <p>
+ * Cost of a request is known only after it is run, so request key at head of round gets its quantum
+ * when its turn starts, keeps its turn while it has some left after {@link #charge(String, long)},
+ * and carries over any overdraft to its next turn.
+ */
+class FairRequestQueue<U> extends AbstractQueue<RequestTask<U>> {
+
+  private final FairSchedulingPolicy fairSchedulingPolicy;
+  private final Map<String, KeyQueue<U>> keyQueueMap = new HashMap<>();
+  /*
+   * Request keys having pending requests, head is the one having its turn
+   */
+  private final Deque<KeyQueue<U>> round = new ArrayDeque<>();
+  private int size;
+
+  FairRequestQueue(FairSchedulingPolicy fairSchedulingPolicy) {
+    this.fairSchedulingPolicy = fairSchedulingPolicy;
+  }
+
+  @Override
+  public boolean offer(RequestTask<U> requestTask) {
+    String requestKey = requestTask.getRequestKey();
+    KeyQueue<U> keyQueue = keyQueueMap.get(requestKey);
+    if (keyQueue == null) {
+      keyQueue = new KeyQueue<>(requestKey, fairSchedulingPolicy.getQuantum(requestKey));
+      keyQueueMap.put(requestKey, keyQueue);
+      round.add(keyQueue);
+    }
+    keyQueue.requestTasks.add(requestTask);
+    size++;
+    return true;
+  }
+
+  @Override
+  public RequestTask<U> poll() {
+    KeyQueue<U> keyQueue = nextTurn();
+    if (keyQueue == null) {
+      return null;
+    }
+    RequestTask<U> requestTask = keyQueue.requestTasks.poll();
+    size--;
+    if (keyQueue.requestTasks.isEmpty()) {
+      remove(keyQueue);
+    }
+    return requestTask;
+  }
+
+  @Override
+  public RequestTask<U> peek() {
+    KeyQueue<U> keyQueue = nextTurn();
+    return keyQueue == null ? null : keyQueue.requestTasks.peek();
+  }
+
+  /**
+   * Charge cost of a request run for given request key, in works or ns. of CPU time. Its turn is over
+   * once it has used up its quantum.
+   */
+  void charge(String requestKey, long cost) {
+    KeyQueue<U> keyQueue = keyQueueMap.get(requestKey);
+    if (keyQueue == null) {
+      // nothing pending, it joins at tail of round on next request anyway
+      return;
+    }
+    keyQueue.deficit -= cost;
+    if (keyQueue.deficit <= 0 && round.peek() == keyQueue) {
+      round.add(round.poll());
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public Iterator<RequestTask<U>> iterator() {
+    return new Iterator<RequestTask<U>>() {
+      private final Iterator<KeyQueue<U>> keyQueueIterator = new ArrayDeque<>(round).iterator();
+      private KeyQueue<U> keyQueue;
+      private Iterator<RequestTask<U>> requestTaskIterator;
+
+      @Override
+      public boolean hasNext() {
+        while (requestTaskIterator == null || !requestTaskIterator.hasNext()) {
+          if (!keyQueueIterator.hasNext()) {
+            return false;
+          }
+          keyQueue = keyQueueIterator.next();
+          requestTaskIterator = keyQueue.requestTasks.iterator();
+        }
+        return true;
+      }
+
+      @Override
+      public RequestTask<U> next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return requestTaskIterator.next();
+      }
+
+      @Override
+      public void remove() {
+        requestTaskIterator.remove();
+        size--;
+        if (keyQueue.requestTasks.isEmpty()) {
+          FairRequestQueue.this.remove(keyQueue);
+        }
+      }
+    };
+  }
+
+  /*
+   * Request key whose turn it is, after handing out quantum to request keys as their turn starts
+   */
+  private KeyQueue<U> nextTurn() {
+    while (true) {
+      KeyQueue<U> keyQueue = round.peek();
+      if (keyQueue == null || keyQueue.deficit > 0) {
+        return keyQueue;
+      }
+      keyQueue.deficit += keyQueue.quantum;
+      if (keyQueue.deficit <= 0) {
+        // still paying off overdraft of its earlier turns
+        round.add(round.poll());
+      }
+    }
+  }
+
+  private void remove(KeyQueue<U> keyQueue) {
+    round.remove(keyQueue);
+    keyQueueMap.remove(keyQueue.requestKey);
+  }
+
+  private static final class KeyQueue<U> {
+    private final String requestKey;
+    private final long quantum;
+    private final Deque<RequestTask<U>> requestTasks = new ArrayDeque<>();
+    private long deficit;
+
+    KeyQueue(String requestKey, long quantum) {
+      this.requestKey = requestKey;
+      this.quantum = quantum;
+    }
+  }
+}
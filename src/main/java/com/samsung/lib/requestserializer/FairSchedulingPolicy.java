@@ -0,0 +1,116 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Policy to interleave request keys sharing a worker thread by deficit round-robin, instead of
+ * running their requests in order of submission.
+ * <p>
+ * In its turn a request key runs requests till it has used up its quantum, measured in number of
+ * works or in CPU time taken by works, then next request key gets its turn. Requests of a request
+ * key are still run one at a time and in order.
+ */
+public class FairSchedulingPolicy {
+
+  /**
+   * Unit in which quantum of a request key is measured.
+   */
+  public enum QuantumUnit {
+    /**
+     * Number of works run
+     */
+    WORK_COUNT,
+    /**
+     * CPU time (in microseconds) taken by works on worker thread
+     */
+    CPU_TIME
+  }
+
+  final QuantumUnit quantumUnit;
+  final long quantum;
+  final Function<String, String> keyClassFunction;
+  final Map<String, Double> weights;
+
+  private FairSchedulingPolicy(Builder builder) {
+    this.quantumUnit = builder.quantumUnit;
+    this.quantum = builder.quantum;
+    this.keyClassFunction = builder.keyClassFunction;
+    this.weights = Collections.unmodifiableMap(new HashMap<>(builder.weights));
+  }
+
+  /**
+   * @return - quantum of given request key, in works or ns. of CPU time
+   */
+  long getQuantum(String requestKey) {
+    double weight = weights.getOrDefault(keyClassFunction.apply(requestKey), 1.0);
+    long unit = quantumUnit == QuantumUnit.CPU_TIME ? TimeUnit.MICROSECONDS.toNanos(1) : 1;
+    return Math.max(1, Math.round(quantum * unit * weight));
+  }
+
+  public static class Builder {
+    private QuantumUnit quantumUnit = QuantumUnit.WORK_COUNT;
+    private long quantum = 1;
+    private Function<String, String> keyClassFunction = requestKey -> requestKey;
+    private Map<String, Double> weights = new HashMap<>();
+
+    /**
+     * Unit of quantum, number of works by default.
+     */
+    public Builder setQuantumUnit(QuantumUnit quantumUnit) {
+      this.quantumUnit = quantumUnit;
+      return this;
+    }
+
+    /**
+     * Quantum of a request key of weight 1, in number of works or microseconds of CPU time.
+     */
+    public Builder setQuantum(long quantum) {
+      this.quantum = quantum;
+      return this;
+    }
+
+    /**
+     * Function mapping request key to its key class, by default every request key is a class of its
+     * own.
+     */
+    public Builder setKeyClassFunction(Function<String, String> keyClassFunction) {
+      this.keyClassFunction = keyClassFunction;
+      return this;
+    }
+
+    /**
+     * Weights of key classes, by which their quantum is multiplied. Key classes not given here have
+     * weight 1.
+     */
+    public Builder setWeights(Map<String, Double> weights) {
+      this.weights = weights;
+      return this;
+    }
+
+    public FairSchedulingPolicy build() {
+      if (quantum < 1) {
+        throw new IllegalArgumentException("Quantum should be positive");
+      }
+      return new FairSchedulingPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,238 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hierarchical timing wheel, scheduling a task and cancelling it in O(1). Each level is a wheel of
+ * {@value #WHEEL_SIZE} buckets, a bucket of level 0 spans one tick, and a bucket of every next level
+ * spans a whole rotation of level below it. A task is placed in lowest level whose rotation covers
+ * its delay, and is cascaded to lower levels as time reaches its bucket.
+ * <p>
+ * A single daemon thread advances wheel tick by tick, started on first scheduled task, and runs
+ * expired tasks. So tasks should be quick, and never block. This class is thread safe.
+ */
+class HierarchicalTimingWheel implements Runnable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HierarchicalTimingWheel.class);
+
+  private static final int WHEEL_BITS = 8;
+  static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+  private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+  /*
+   * Enough for any delay in ticks, as level count * WHEEL_BITS stays below 63
+   */
+  private static final int MAX_LEVELS = 7;
+
+  private final String name;
+  private final long tickDuration;
+  private final long startTime = System.nanoTime();
+  /*
+   * Buckets of each level, created as delays need them
+   */
+  private final List<Timeout[]> levels = new ArrayList<>();
+  private long currentTick;
+  private int size;
+  private Thread thread;
+  private boolean isStopped;
+
+  /**
+   * @param tickDuration - duration of a tick in ms., i.e. precision of delays
+   */
+  HierarchicalTimingWheel(final String name, final long tickDuration) {
+    this.name = name;
+    this.tickDuration = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickDuration));
+  }
+
+  /**
+   * Run given task after given delay, on timing wheel thread.
+   *
+   * @param delay - delay in ms., rounded up to a tick
+   * @return - handle to cancel task
+   */
+  Timeout schedule(final Runnable task, final long delay) {
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+    Timeout timeout = new Timeout(this, task, (deadline - startTime + tickDuration - 1) / tickDuration);
+    synchronized (this) {
+      if (isStopped) {
+        throw new AsyncRequestSerializerException("Timing wheel " + name + " is stopped");
+      }
+      if (thread == null) {
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+      }
+      if (size == 0) {
+        // nothing to cascade, so skip ticks passed while idle
+        currentTick = Math.max(currentTick, elapsedTicks());
+      }
+      // deadline is at least next tick, so that it is never placed in current bucket
+      timeout.deadlineTick = Math.max(timeout.deadlineTick, currentTick + 1);
+      place(timeout);
+      size++;
+      notify();
+    }
+    return timeout;
+  }
+
+  /**
+   * Stop timing wheel thread, pending tasks are dropped.
+   */
+  synchronized void stop() {
+    isStopped = true;
+    notify();
+  }
+
+  @Override
+  public void run() {
+    LOGGER.debug("Timing wheel {} started", name);
+    while (true) {
+      List<Timeout> expiredTimeouts = new ArrayList<>();
+      synchronized (this) {
+        try {
+          if (isStopped) {
+            LOGGER.debug("Timing wheel {} stopped", name);
+            return;
+          }
+          if (size == 0) {
+            wait();
+            continue;
+          }
+          long waitTime = startTime + (currentTick + 1) * tickDuration - System.nanoTime();
+          if (waitTime > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, waitTime);
+            continue;
+          }
+        } catch (InterruptedException ie) {
+          LOGGER.warn("Timing wheel {} interrupted while waiting for next tick", name);
+          continue;
+        }
+        advance(elapsedTicks(), expiredTimeouts);
+      }
+      for (Timeout timeout : expiredTimeouts) {
+        try {
+          timeout.task.run();
+        } catch (RuntimeException exception) {
+          LOGGER.error("Error while running expired task of timing wheel " + name, exception);
+        }
+      }
+    }
+  }
+
+  private long elapsedTicks() {
+    return (System.nanoTime() - startTime) / tickDuration;
+  }
+
+  /*
+   * Should be called under lock of this instance
+   */
+  private void advance(long targetTick, List<Timeout> expiredTimeouts) {
+    while (currentTick < targetTick) {
+      currentTick++;
+      // cascade from higher levels first, so that a task moves down as far as it should
+      for (int level = levels.size() - 1; level > 0; level--) {
+        if ((currentTick & ((1L << (level * WHEEL_BITS)) - 1)) == 0) {
+          Timeout bucket = levels.get(level)[(int) ((currentTick >> (level * WHEEL_BITS)) & WHEEL_MASK)];
+          while (bucket.next != bucket) {
+            Timeout timeout = bucket.next;
+            timeout.unlink();
+            place(timeout);
+          }
+        }
+      }
+      Timeout bucket = levels.get(0)[(int) (currentTick & WHEEL_MASK)];
+      while (bucket.next != bucket) {
+        Timeout timeout = bucket.next;
+        timeout.unlink();
+        size--;
+        expiredTimeouts.add(timeout);
+      }
+    }
+  }
+
+  /*
+   * Should be called under lock of this instance, deadline of timeout should not be before current tick
+   */
+  private void place(Timeout timeout) {
+    long delta = timeout.deadlineTick - currentTick;
+    int level = 0;
+    while (level < MAX_LEVELS - 1 && delta >= 1L << ((level + 1) * WHEEL_BITS)) {
+      level++;
+    }
+    while (levels.size() <= level) {
+      Timeout[] buckets = new Timeout[WHEEL_SIZE];
+      for (int index = 0; index < WHEEL_SIZE; index++) {
+        buckets[index] = new Timeout(this, null, -1);
+      }
+      levels.add(buckets);
+    }
+    timeout.linkBefore(levels.get(level)[(int) ((timeout.deadlineTick >> (level * WHEEL_BITS)) & WHEEL_MASK)]);
+  }
+
+  /**
+   * A scheduled task, also used as sentinel of a bucket's circular list.
+   */
+  static final class Timeout {
+    private final HierarchicalTimingWheel timingWheel;
+    private final Runnable task;
+    private long deadlineTick;
+    private Timeout previous = this;
+    private Timeout next = this;
+    private boolean isLinked;
+
+    private Timeout(HierarchicalTimingWheel timingWheel, Runnable task, long deadlineTick) {
+      this.timingWheel = timingWheel;
+      this.task = task;
+      this.deadlineTick = deadlineTick;
+    }
+
+    /**
+     * @return - true if task is cancelled, false if it already expired or is cancelled
+     */
+    boolean cancel() {
+      synchronized (timingWheel) {
+        if (!isLinked) {
+          return false;
+        }
+        unlink();
+        timingWheel.size--;
+        return true;
+      }
+    }
+
+    private void linkBefore(Timeout sentinel) {
+      previous = sentinel.previous;
+      next = sentinel;
+      sentinel.previous.next = this;
+      sentinel.previous = this;
+      isLinked = true;
+    }
+
+    private void unlink() {
+      previous.next = next;
+      next.previous = previous;
+      previous = this;
+      next = this;
+      isLinked = false;
+    }
+  }
+}
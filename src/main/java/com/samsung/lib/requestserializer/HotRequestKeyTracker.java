@@ -0,0 +1,195 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming heavy hitter detection over submitted request keys, based on space-saving algorithm.
+ * <p>
+ * A bounded number of request keys is monitored. At end of every window, monitored request keys
+ * having at least configured share of submits in that window, are marked hot (most frequent first,
+ * up to configured count), and counts are halved so that older windows fade out.
+ * <p>
+ * Monitored counters are also kept in a min-heap by count, so least frequent request key is found
+ * in O(1) and counts are updated in O(log n). Halving all counts keeps heap order.
+ */
+class HotRequestKeyTracker {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(HotRequestKeyTracker.class);
+
+  private static final int MONITORED_PER_HOT_REQUEST_KEY = 8;
+
+  private final int hotRequestKeyCount;
+  private final int capacity;
+  private final double threshold;
+  private final long window;
+
+  private final Map<String, Counter> counters = new HashMap<>();
+  private final Counter[] heap;
+  private long windowStart = System.currentTimeMillis();
+  private long windowTotal;
+
+  private Map<String, Double> hotRequestKeys = Collections.emptyMap();
+
+  HotRequestKeyTracker(final int hotRequestKeyCount, final AsyncRequestSerializerConfig asyncRequestSerializerConfig) {
+    this.hotRequestKeyCount = hotRequestKeyCount;
+    this.capacity = Math.max(hotRequestKeyCount * MONITORED_PER_HOT_REQUEST_KEY, 64);
+    this.heap = new Counter[capacity];
+    this.threshold = asyncRequestSerializerConfig.hotRequestKeyThreshold;
+    this.window = asyncRequestSerializerConfig.hotRequestKeyWindow;
+  }
+
+  synchronized void record(final String requestKey) {
+    rollWindowIfDue();
+    windowTotal++;
+    Counter counter = counters.get(requestKey);
+    if (counter != null) {
+      counter.count++;
+      counter.windowCount++;
+      siftDown(counter);
+      return;
+    }
+    int size = counters.size();
+    if (size < capacity) {
+      counter = new Counter(requestKey, size);
+      counters.put(requestKey, counter);
+      heap[size] = counter;
+      siftUp(counter);
+      return;
+    }
+    // replace least frequent request key, inheriting its count as over estimation
+    Counter minCounter = heap[0];
+    counters.remove(minCounter.requestKey);
+    minCounter.requestKey = requestKey;
+    minCounter.count++;
+    minCounter.windowCount = 1;
+    counters.put(requestKey, minCounter);
+    siftDown(minCounter);
+  }
+
+  private void siftUp(Counter counter) {
+    int index = counter.index;
+    while (index > 0) {
+      int parentIndex = (index - 1) >>> 1;
+      Counter parent = heap[parentIndex];
+      if (parent.count <= counter.count) {
+        break;
+      }
+      place(parent, index);
+      index = parentIndex;
+    }
+    place(counter, index);
+  }
+
+  private void siftDown(Counter counter) {
+    int size = counters.size();
+    int index = counter.index;
+    while (true) {
+      int childIndex = 2 * index + 1;
+      if (childIndex >= size) {
+        break;
+      }
+      if (childIndex + 1 < size && heap[childIndex + 1].count < heap[childIndex].count) {
+        childIndex++;
+      }
+      Counter child = heap[childIndex];
+      if (counter.count <= child.count) {
+        break;
+      }
+      place(child, index);
+      index = childIndex;
+    }
+    place(counter, index);
+  }
+
+  private void place(Counter counter, int index) {
+    heap[index] = counter;
+    counter.index = index;
+  }
+
+  synchronized boolean isHot(final String requestKey) {
+    rollWindowIfDue();
+    return hotRequestKeys.containsKey(requestKey);
+  }
+
+  /**
+   * @return - hot request keys, with their submit rate (per second) in last window
+   */
+  synchronized Map<String, Double> getHotRequestKeys() {
+    rollWindowIfDue();
+    return hotRequestKeys;
+  }
+
+  /**
+   * @return - time in ms. till current window ends, i.e. till hot request keys may change
+   */
+  synchronized long getWindowRemaining() {
+    return Math.max(1, windowStart + window - System.currentTimeMillis());
+  }
+
+  private void rollWindowIfDue() {
+    long now = System.currentTimeMillis();
+    long elapsed = now - windowStart;
+    if (elapsed < window) {
+      return;
+    }
+    List<Map.Entry<String, Counter>> candidates = new ArrayList<>();
+    for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+      if (entry.getValue().windowCount > 0 && entry.getValue().windowCount >= threshold * windowTotal) {
+        candidates.add(entry);
+      }
+    }
+    candidates.sort((entry1, entry2) -> Long.compare(entry2.getValue().windowCount, entry1.getValue().windowCount));
+    Map<String, Double> hot = new LinkedHashMap<>();
+    for (Map.Entry<String, Counter> entry : candidates.subList(0, Math.min(hotRequestKeyCount, candidates.size()))) {
+      hot.put(entry.getKey(), entry.getValue().windowCount * 1000.0 / elapsed);
+    }
+    if (!hot.keySet().equals(hotRequestKeys.keySet())) {
+      LOGGER.info("Hot request keys changed to {}", hot.keySet());
+    }
+    hotRequestKeys = Collections.unmodifiableMap(hot);
+    for (Counter counter : counters.values()) {
+      counter.count /= 2;
+      counter.windowCount = 0;
+    }
+    windowStart = now;
+    windowTotal = 0;
+  }
+
+  private static final class Counter {
+    private String requestKey;
+    private long count = 1;
+    private long windowCount = 1;
+    /*
+     * Position in heap
+     */
+    private int index;
+
+    Counter(String requestKey, int index) {
+      this.requestKey = requestKey;
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * A chain of stages (e.g. decode, enrich, persist) through which items of a request key move in
+ * order. Every stage has its own {@link AsyncRequestSerializer}, i.e. its own worker thread budget, so
+ * different stages process different items of same request key in parallel, and throughput of a
+ * request key approaches that of its slowest stage rather than sum of all stages.
+ * <p>
+ * As with {@link AsyncRequestSerializer}, items of a request key should be submitted by one thread
+ * at a time.
+ *
+ * @param <I> - type of item submitted to first stage
+ * @param <O> - type of item produced by last stage
+ */
+public class KeyedPipeline<I, O> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyedPipeline.class);
+
+  /**
+   * Processing of an item by a stage.
+   *
+   * @param <A> - type of input item
+   * @param <B> - type of output item
+   */
+  public interface Stage<A, B> {
+    B process(String requestKey, A item) throws Exception;
+  }
+
+  private final List<StageRunner> stageRunners;
+
+  private KeyedPipeline(Builder<I, O> builder) {
+    this.stageRunners = Collections.unmodifiableList(new ArrayList<>(builder.stageRunners));
+    LOGGER.debug("Initialized KeyedPipeline with stages {}", stageRunners);
+  }
+
+  /**
+   * Submit an item into first stage.
+   *
+   * @param requestKey - request key of item (Should not be null)
+   * @param item - item to process
+   * @return - future completing with output of last stage, or failure of any stage
+   * @throws Exception - In case something fails or bad parameter is passed
+   */
+  @SuppressWarnings("unchecked")
+  public CompletableFuture<O> submit(final String requestKey, final I item) throws Exception {
+    Objects.requireNonNull(requestKey, "Request key is mandatory field");
+    CompletableFuture<Object> result = new CompletableFuture<>();
+    submit(0, requestKey, item, result);
+    return (CompletableFuture<O>) result;
+  }
+
+  private void submit(final int index, final String requestKey, final Object item,
+      final CompletableFuture<Object> result) throws Exception {
+    StageRunner stageRunner = stageRunners.get(index);
+    Work<Object> work = () -> stageRunner.stage.process(requestKey, item);
+    // later stages are fed by completion of previous one, which should never wait for a worker thread
+    RequestFuture<Object> requestTask = index == 0
+        ? stageRunner.asyncRequestSerializer.submitRequest(requestKey, work)
+        : stageRunner.asyncRequestSerializer.enqueueRequest(requestKey, work);
+    requestTask.whenDone(() -> forward(index, requestKey, requestTask, result));
+  }
+
+  /**
+   * Pass output of a stage, once it is done with an item, into next stage, or complete result if it
+   * is last one. A stage is done with items of a request key in order, so they enter next stage in
+   * order as well. Output is passed only once, even if stage retried item.
+   */
+  private void forward(final int index, final String requestKey, final RequestFuture<Object> requestTask,
+      final CompletableFuture<Object> result) {
+    StageRunner stageRunner = stageRunners.get(index);
+    Object output;
+    try {
+      output = requestTask.get();
+    } catch (ExecutionException executionException) {
+      LOGGER.debug("Stage {} failed for request-key {}", stageRunner.name, requestKey);
+      result.completeExceptionally(executionException.getCause());
+      return;
+    } catch (CancellationException | InterruptedException exception) {
+      result.completeExceptionally(exception);
+      return;
+    }
+    if (index == stageRunners.size() - 1) {
+      result.complete(output);
+      return;
+    }
+    try {
+      submit(index + 1, requestKey, output, result);
+    } catch (Exception exception) {
+      LOGGER.warn("Failed to pass item of request-key " + requestKey + " from stage " + stageRunner.name, exception);
+      result.completeExceptionally(exception);
+    }
+  }
+
+  /**
+   * Shut down stages one after other, each drained of items submitted into it, see
+   * {@link AsyncRequestSerializer#shutdown(long)}.
+   *
+   * @param timeout - time in ms. to wait for submitted items to pass through all stages
+   * @return - true if all submitted items passed through in time
+   * @throws Exception - In case something fails
+   */
+  public boolean shutdown(final long timeout) throws Exception {
+    long deadline = System.currentTimeMillis() + timeout;
+    boolean completed = true;
+    for (StageRunner stageRunner : stageRunners) {
+      LOGGER.debug("Shutting down stage {}", stageRunner.name);
+      completed &= stageRunner.asyncRequestSerializer.shutdown(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+    return completed;
+  }
+
+  private static final class StageRunner {
+    private final String name;
+    private final Stage<Object, Object> stage;
+    private final AsyncRequestSerializer<Object> asyncRequestSerializer;
+
+    StageRunner(String name, Stage<Object, Object> stage, AsyncRequestSerializerConfig config) {
+      this.name = name;
+      this.stage = stage;
+      this.asyncRequestSerializer = new AsyncRequestSerializer<>(config);
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  /**
+   * @param <I> - type of item submitted to first stage
+   * @param <O> - type of item produced by last stage added so far, same as I before any
+   */
+  public static class Builder<I, O> {
+    private final List<StageRunner> stageRunners = new ArrayList<>();
+
+    /**
+     * Add a stage after stages added so far.
+     *
+     * @param name - name of stage, for logging
+     * @param stage - processing of an item by stage
+     * @param config - configuration of stage's {@link AsyncRequestSerializer}, e.g. its worker thread
+     *        pool size
+     */
+    @SuppressWarnings("unchecked")
+    public <R> Builder<I, R> addStage(String name, Stage<? super O, ? extends R> stage,
+        AsyncRequestSerializerConfig config) {
+      stageRunners.add(new StageRunner(name, (Stage<Object, Object>) stage, config));
+      return (Builder<I, R>) this;
+    }
+
+    public KeyedPipeline<I, O> build() {
+      if (stageRunners.isEmpty()) {
+        throw new IllegalArgumentException("Pipeline should have at least one stage");
+      }
+      return new KeyedPipeline<>(this);
+    }
+  }
+}
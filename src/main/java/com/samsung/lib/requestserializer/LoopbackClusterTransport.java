@@ -0,0 +1,48 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in-process {@link ClusterTransport}, where all nodes live in same JVM, e.g. for testing.
+ *
+ * @param <T> - result type of work
+ */
+public class LoopbackClusterTransport<T> implements ClusterTransport<T> {
+
+  private final Map<String, ClusterRequestSerializer<T>> nodes = new ConcurrentHashMap<>();
+
+  public void register(final ClusterRequestSerializer<T> node) {
+    nodes.put(node.getNodeId(), node);
+  }
+
+  public void unregister(final String nodeId) {
+    nodes.remove(nodeId);
+  }
+
+  @Override
+  public CompletableFuture<T> forward(final String nodeId, final String requestKey, final Work<T> request)
+      throws Exception {
+    ClusterRequestSerializer<T> node = nodes.get(nodeId);
+    if (node == null) {
+      throw new AsyncRequestSerializerException("Unknown node " + nodeId);
+    }
+    return node.submitLocal(requestKey, request);
+  }
+}
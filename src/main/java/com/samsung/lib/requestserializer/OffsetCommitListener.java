@@ -0,0 +1,46 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * Listener notified when committable offset of a partition advances, see
+ * {@link AsyncRequestSerializer#submit(String, Work, int, long)}.
+ */
+public interface OffsetCommitListener {
+
+  /**
+   * Called under lock of partition, so commits of a partition are notified in increasing order. It
+   * should return quickly.
+   *
+   * @param partition - partition of input log
+   * @param offset - highest offset, such that it and every earlier offset of partition is processed
+   */
+  void commit(int partition, long offset);
+
+  /**
+   * Called instead of {@link #commit(int, long)} for a serializer attached to a {@link WorkerRuntime}
+   * whose listener is configured for whole runtime, as partitions of different namespaces are
+   * independent. By default namespace is ignored.
+   *
+   * @param namespace - namespace of serializer, see
+   *        {@link AsyncRequestSerializer#AsyncRequestSerializer(WorkerRuntime, String)}
+   * @param partition - partition of input log
+   * @param offset - highest offset, such that it and every earlier offset of partition is processed
+   */
+  default void commit(String namespace, int partition, long offset) {
+    commit(partition, offset);
+  }
+}
@@ -0,0 +1,259 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks, per partition of a partitioned input log, the highest contiguously processed offset, while
+ * records are processed out of order across request keys.
+ * <p>
+ * Offsets of a partition are expected to be tracked in increasing order; offsets skipped in between
+ * (e.g. compacted away) are treated as processed. Processed offsets beyond the watermark are kept in a
+ * ring bitmap, one bit per offset. Large gaps are not filled, instead tracking continues in a new
+ * bitmap segment.
+ */
+class OffsetWatermarkTracker {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(OffsetWatermarkTracker.class);
+
+  private final OffsetCommitListener offsetCommitListener;
+  private final Map<Integer, PartitionWatermark> partitionWatermarkMap = new ConcurrentHashMap<>();
+
+  /**
+   * @param offsetCommitListener - null if no one is listening
+   */
+  OffsetWatermarkTracker(final OffsetCommitListener offsetCommitListener) {
+    this.offsetCommitListener = offsetCommitListener;
+  }
+
+  /**
+   * Track an offset, to be called when its record is submitted.
+   */
+  void track(final int partition, final long offset) {
+    partitionWatermarkMap.computeIfAbsent(partition, key -> new PartitionWatermark()).track(offset);
+  }
+
+  /**
+   * Undo tracking of last tracked offset of partition, to be called when its record is rejected. It is
+   * then treated like an offset never submitted.
+   */
+  void untrack(final int partition, final long offset) {
+    PartitionWatermark partitionWatermark = partitionWatermarkMap.get(partition);
+    synchronized (partitionWatermark) {
+      partitionWatermark.untrack(offset);
+    }
+  }
+
+  /**
+   * Mark a tracked offset as processed, committable offset is notified if it advances.
+   */
+  void complete(final int partition, final long offset) {
+    PartitionWatermark partitionWatermark = partitionWatermarkMap.get(partition);
+    synchronized (partitionWatermark) {
+      long committed = partitionWatermark.complete(offset);
+      if (committed >= 0 && offsetCommitListener != null) {
+        offsetCommitListener.commit(partition, committed);
+      }
+    }
+  }
+
+  /**
+   * @return - highest contiguously processed offset of partition, -1 if none
+   */
+  long getCommittedOffset(final int partition) {
+    PartitionWatermark partitionWatermark = partitionWatermarkMap.get(partition);
+    if (partitionWatermark == null) {
+      return -1;
+    }
+    synchronized (partitionWatermark) {
+      return partitionWatermark.getBase() - 1;
+    }
+  }
+
+  private static final class PartitionWatermark {
+
+    /*
+     * Gaps longer than this start a new segment, instead of being filled into bitmap
+     */
+    private static final long MAX_FILLED_GAP = 64 * 64;
+
+    /*
+     * Segments of contiguously tracked offsets, in order, gaps between them are treated as processed
+     */
+    private final ArrayDeque<Segment> segments = new ArrayDeque<>();
+
+    synchronized void track(long offset) {
+      Segment last = segments.peekLast();
+      if (last == null || (segments.size() == 1 && last.isDone())) {
+        // nothing pending, restart from this offset
+        if (last != null && offset < last.next) {
+          LOGGER.warn("Offset {} is tracked again, already committed till {}", offset, last.base - 1);
+          return;
+        }
+        segments.clear();
+        segments.add(new Segment(offset));
+        return;
+      }
+      if (offset < last.next) {
+        LOGGER.warn("Offset {} is tracked again or out of order, expected {}", offset, last.next);
+        return;
+      }
+      if (offset - last.next > MAX_FILLED_GAP) {
+        LOGGER.debug("Offsets {} to {} are never tracked, starting new segment", last.next, offset - 1);
+        segments.add(new Segment(offset));
+        return;
+      }
+      last.append(offset);
+    }
+
+    /**
+     * Undo tracking of last tracked offset, e.g. as its record is rejected, it is then treated as never
+     * tracked. Should be called under lock of this instance.
+     */
+    void untrack(long offset) {
+      Segment last = segments.peekLast();
+      if (last == null || offset != last.next - 1 || offset < last.base) {
+        LOGGER.warn("Offset {} is not last pending one, ignoring its untracking", offset);
+        return;
+      }
+      last.next = offset;
+    }
+
+    /**
+     * Should be called under lock of this instance.
+     *
+     * @return - new committable offset if it advanced, -1 otherwise
+     */
+    long complete(long offset) {
+      Segment segment = null;
+      for (Segment candidate : segments) {
+        if (offset < candidate.next) {
+          segment = offset >= candidate.base ? candidate : null;
+          break;
+        }
+      }
+      if (segment == null) {
+        LOGGER.debug("Offset {} is not pending, ignoring its completion", offset);
+        return -1;
+      }
+      long base = getBase();
+      segment.complete(offset);
+      // gap after a done segment is processed as well
+      while (segments.size() > 1 && segments.peekFirst().isDone()) {
+        segments.pollFirst();
+      }
+      return getBase() > base ? getBase() - 1 : -1;
+    }
+
+    /**
+     * @return - lowest offset not processed yet, so base - 1 is committable
+     */
+    long getBase() {
+      Segment first = segments.peekFirst();
+      return first == null ? 0 : first.base;
+    }
+  }
+
+  private static final class Segment {
+
+    private static final int INITIAL_WORD_COUNT = 16;
+
+    /*
+     * Lowest offset of segment not processed yet
+     */
+    private long base;
+    /*
+     * Next offset expected to be tracked
+     */
+    private long next;
+    /*
+     * Ring bitmap of processed offsets, bit 0 of words[head] is for offset origin (a multiple of 64)
+     */
+    private long[] words = new long[INITIAL_WORD_COUNT];
+    private int head;
+    private long origin;
+
+    private Segment(long offset) {
+      origin = offset & ~63L;
+      base = offset;
+      next = offset + 1;
+    }
+
+    private boolean isDone() {
+      return base == next;
+    }
+
+    private void append(long offset) {
+      ensureCapacity(offset);
+      // offsets never submitted in between are treated as processed, filled a word at a time
+      for (long skipped = next; skipped < offset;) {
+        int bit = (int) ((skipped - origin) & 63);
+        long count = Math.min(64 - bit, offset - skipped);
+        words[index(skipped)] |= count == 64 ? -1L : ((1L << count) - 1) << bit;
+        skipped += count;
+      }
+      next = offset + 1;
+    }
+
+    private void complete(long offset) {
+      words[index(offset)] |= 1L << ((offset - origin) & 63);
+      if (offset != base) {
+        return;
+      }
+      while (base < next) {
+        int bit = (int) (base - origin);
+        long word = words[head] >>> bit;
+        int processed = Long.numberOfTrailingZeros(~word);
+        if (processed == 0) {
+          break;
+        }
+        base = Math.min(base + Math.min(processed, 64 - bit), next);
+        if (base - origin >= 64) {
+          words[head] = 0;
+          head = (head + 1) % words.length;
+          origin += 64;
+        }
+      }
+    }
+
+    private int index(long offset) {
+      return (int) ((head + ((offset - origin) >>> 6)) % words.length);
+    }
+
+    private void ensureCapacity(long offset) {
+      long required = ((offset - origin) >>> 6) + 1;
+      if (required <= words.length) {
+        return;
+      }
+      int length = words.length;
+      while (length < required) {
+        length <<= 1;
+      }
+      long[] grown = new long[length];
+      for (int index = 0; index < words.length; index++) {
+        grown[index] = words[(head + index) % words.length];
+      }
+      words = grown;
+      head = 0;
+    }
+  }
+}
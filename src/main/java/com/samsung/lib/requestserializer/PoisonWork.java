@@ -17,7 +17,8 @@ package com.samsung.lib.requestserializer;
 
 /**
  * A singleton class to create a poison pill for localqueue under
- * PoolableWorkerThread
+ * PoolableWorkerThread. Worker thread taking it from its queue dies, see
+ * {@link PoolableWorkerThreadPool#shutdown()}.
  * 
  * @author arun.y
  *
@@ -18,11 +18,18 @@ package com.samsung.lib.requestserializer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 
@@ -30,11 +37,28 @@ public class PoolableWorkerThread<U> extends Thread {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(PoolableWorkerThread.class);
 
-  private final PoolableWorkerThreadPool myPool;
+  private final PoolableWorkerThreadPool<U> myPool;
   private final AsyncRequestSerializerConfig asyncRequestSerializerConfig;
 
-  private final BlockingQueue<FutureTask<U>> localRequestQueue = new LinkedBlockingQueue<>();
+  /*
+   * Guarded by localRequestQueueLock, so that taking a request and marking its request key as
+   * executing is atomic (see giveUpRequestKey)
+   */
+  private final Queue<RequestTask<U>> localRequestQueue;
+  /*
+   * Same as localRequestQueue if fair scheduling is enabled, otherwise null
+   */
+  private final FairRequestQueue<U> fairRequestQueue;
   private final Object localRequestQueueLock = new Object();
+  /*
+   * Number of queued requests, spilled ones included, guarded by localRequestQueueLock
+   */
+  private int queuedRequestCount;
+  /*
+   * Spilled requests queued last for their request key, new spilled requests of request key are added
+   * into them, guarded by localRequestQueueLock
+   */
+  private final Map<String, SpilledRequests<U>> tailSpilledRequests = new HashMap<>();
   private boolean isActive = false;
   /*
    * This flag will be set by destroy function of Thread pool Making this true will lead to stopping
@@ -42,131 +66,315 @@ public class PoolableWorkerThread<U> extends Thread {
    */
   private boolean isDestroyed = false;
 
-  private String currentRequestKey;
+  private static final double WORK_TIME_EWMA_WEIGHT = 0.2;
+  private static final String POISON_REQUEST_KEY = "";
 
-  public PoolableWorkerThread(final PoolableWorkerThreadPool myPool,
+  /*
+   * Request keys mapped to this worker thread, more than one only if worker thread sharing is enabled
+   */
+  private final Set<String> currentRequestKeys = new LinkedHashSet<>();
+  /*
+   * Exponentially weighted moving average of time (in ns.) to run a work
+   */
+  private volatile double workTimeEwma;
+  /*
+   * Request key of request being run, and since when (in ns.)
+   */
+  private String executingRequestKey;
+  private long executionStartTime;
+  /*
+   * Idle while dedicated to a hot request key, so it waits for requests without timing out, till pool
+   * finds request key cooled down
+   */
+  private boolean parked;
+
+  public PoolableWorkerThread(final PoolableWorkerThreadPool<U> myPool,
                               final AsyncRequestSerializerConfig asyncRequestSerializerConfig) {
     this.myPool = myPool;
     this.asyncRequestSerializerConfig = asyncRequestSerializerConfig;
+    FairSchedulingPolicy fairSchedulingPolicy = asyncRequestSerializerConfig.fairSchedulingPolicy;
+    this.fairRequestQueue = fairSchedulingPolicy == null ? null : new FairRequestQueue<>(fairSchedulingPolicy);
+    this.localRequestQueue = fairRequestQueue == null ? new ArrayDeque<>() : fairRequestQueue;
     LOGGER.info("Created PoolableWorkerThread attached to BlockingWorkerThreadPool");
   }
 
-  String getCurrentRequestKey() {
-    return currentRequestKey;
+  /**
+   * Should be called under pool lock, which guards mapping of request keys.
+   */
+  Set<String> getCurrentRequestKeys() {
+    return currentRequestKeys;
   }
 
-  void setCurrentRequestKey(String currentRequestKey) {
-    this.currentRequestKey = currentRequestKey;
+  void addCurrentRequestKey(String currentRequestKey) {
+    synchronized (localRequestQueueLock) {
+      currentRequestKeys.add(currentRequestKey);
+    }
   }
 
-  @Override
-  public void run() {
-    try {
-      LOGGER.debug("I am ready to run however, will block till something is assigned in my local work queue");
-      FutureTask<U> request = localRequestQueue.take();
-      if (request != null) {
-        LOGGER.debug("Received request task from local work queue");
-        doWork(request);
-      } else {
-        LOGGER.warn("Received null request task from local work queue. This should not happen!.");
+  /**
+   * Estimated time to run all pending requests of this worker thread.
+   */
+  double getLoad() {
+    double averageWorkTime = Math.max(workTimeEwma, 1);
+    synchronized (localRequestQueueLock) {
+      double load = queuedRequestCount * averageWorkTime;
+      if (executingRequestKey != null) {
+        // a work running for long, is likely to run longer
+        load += Math.max(averageWorkTime, System.nanoTime() - executionStartTime);
       }
-    } catch (InterruptedException interruptedException) {
-      LOGGER.warn("Interrupted while blocking for request task in local work queue");
-    } catch (ExecutionException executionException) {
-      LOGGER.error("Error while executing local requests", executionException);
+      return load;
     }
+  }
+
+  @Override
+  public void run() {
+    LOGGER.debug("I am ready to run however, will block till something is assigned in my local work queue");
     while (true) {
       try {
-        FutureTask<U> request = localRequestQueue
-            .poll(asyncRequestSerializerConfig.localRequestQueueTimeOut, TimeUnit.MILLISECONDS);
+        boolean released;
+        RequestTask<U> request = nextRequest();
         if (request == null) {
           LOGGER.debug("Nothing received since past {} {}", asyncRequestSerializerConfig.localRequestQueueTimeOut,
               TimeUnit.MILLISECONDS);
-          synchronized (localRequestQueueLock) {
-            LOGGER.debug("Checking again in synchronized block if something got added, while polling timed-out");
-            request = localRequestQueue.poll();
-            if (request == null) {
-              LOGGER.debug("Nothing really received in work queue, safe to release/detach itself from {} requestKey",
-                  currentRequestKey);
-              LOGGER.debug("Returning myself into pool");
-              myPool.returnPoolableWorkerThread(this);
-              LOGGER.debug("Returning myself into pool - [OK]");
-              /*
-               * sometime pool can call destroy immediately after returning object to pool, so in
-               * that case, we need to return now
-               */
-              if (isDestroyed) {
-                LOGGER.info("I am done, My pool wants me to die, stopping local executor service");
-                return;
-              }
-
-              // PLACE to release/clean-up stuff
-              isActive = false;
-              currentRequestKey = null;
-              do {
-                try {
-                  LOGGER.debug("Going to wait till notified");
-                  /* To awaken, please call activate() */
-                  localRequestQueueLock.wait();
-                  LOGGER.debug("Notified!, time to get back to work");
-                  break;// break from wait
-                } catch (InterruptedException ie) {
-                  LOGGER.warn("Interrupted or spurious wake up, will check if isActive is set");
-                }
-              } 
-              while (!isActive);
-              // check if this wake-up is to get back to work or to stop and
-              // release this worker thread
-              if (isActive) {
-                LOGGER.debug("Wake up by, activate");
-                // I was woke up by activate function as isActive is true,
-                continue;// continue to look for new work
-              } else {
-                // isDestroyed be true
-                LOGGER.debug("Wake up by, kill");
-                LOGGER.info("I am done, My pool wants me to die, stopping local executor service");
-                return;
-              }
-            } else {
-              LOGGER.debug("something got added in work queue, while I timed-out, back to work");
-            }
-          }
+          LOGGER.debug("Returning myself into pool");
+          // pool checks again under lock if something got added, while polling timed-out
+          released = myPool.returnPoolableWorkerThread(this);
+        } else if (request.isPoison()) {
+          LOGGER.info("I am done, My pool is shut down, stopping local executor service");
+          return;
+        } else {
+          // Do the real work
+          released = doWork(request);
+        }
+        if (released && !awaitActivation()) {
+          LOGGER.info("I am done, My pool wants me to die, stopping local executor service");
+          return;
         }
-        // Do the real work
-        doWork(request);
       } catch (Exception exception) {
         LOGGER.error("Error while executing local requests", exception);
       }
     }
   }
 
-  private void doWork(FutureTask<U> request) throws ExecutionException, InterruptedException {
+  /**
+   * Take next request from local queue, if there is none and work stealing is enabled, try to steal
+   * a request key from other worker thread first.
+   *
+   * @return - null if nothing is received within local request queue timeout
+   */
+  private RequestTask<U> nextRequest() throws Exception {
+    if (asyncRequestSerializerConfig.workStealing) {
+      synchronized (localRequestQueueLock) {
+        RequestTask<U> request = takeRequest();
+        if (request != null) {
+          return request;
+        }
+      }
+      myPool.stealRequestKey(this);
+    }
+    synchronized (localRequestQueueLock) {
+      long deadline = System.currentTimeMillis() + asyncRequestSerializerConfig.localRequestQueueTimeOut;
+      while (true) {
+        RequestTask<U> request = takeRequest();
+        if (request != null) {
+          return request;
+        }
+        if (parked) {
+          localRequestQueueLock.wait();
+          continue;
+        }
+        long timeout = deadline - System.currentTimeMillis();
+        if (timeout <= 0) {
+          return null;
+        }
+        localRequestQueueLock.wait(timeout);
+      }
+    }
+  }
+
+  /*
+   * Take request at head of queue, out of spilled requests if they are at head. Should be called under
+   * localRequestQueueLock
+   *
+   * @return - null if nothing is queued, other than cancelled spilled requests
+   */
+  private RequestTask<U> takeRequest() {
+    RequestTask<U> request = null;
+    while (request == null && !localRequestQueue.isEmpty()) {
+      request = localRequestQueue.peek();
+      if (request instanceof SpilledRequests) {
+        SpilledRequests<U> spilledRequests = (SpilledRequests<U>) request;
+        int spilledRequestCount = spilledRequests.getRequestCount();
+        request = spilledRequests.poll();
+        queuedRequestCount -= spilledRequestCount - spilledRequests.getRequestCount();
+        if (spilledRequests.isEmpty()) {
+          localRequestQueue.poll();
+          tailSpilledRequests.remove(spilledRequests.getRequestKey(), spilledRequests);
+        }
+      } else {
+        localRequestQueue.poll();
+        queuedRequestCount--;
+      }
+    }
+    if (request != null) {
+      executingRequestKey = request.getRequestKey();
+      executionStartTime = System.nanoTime();
+    }
+    return request;
+  }
+
+  /**
+   * @return - CPU time (in ns.) used by this thread so far, or wall clock time if it can not be
+   *         measured
+   */
+  private static long getCpuTime() {
+    ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean.isCurrentThreadCpuTimeSupported() && threadMXBean.isThreadCpuTimeEnabled()) {
+      return threadMXBean.getCurrentThreadCpuTime();
+    }
+    return System.nanoTime();
+  }
+
+  /**
+   * Block till this worker thread is activated again or killed by pool.
+   *
+   * @return - true if activated, false if killed
+   */
+  private boolean awaitActivation() {
+    synchronized (localRequestQueueLock) {
+      while (!isActive && !isDestroyed) {
+        try {
+          LOGGER.debug("Going to wait till notified");
+          /* To awaken, please call activate() */
+          localRequestQueueLock.wait();
+        } catch (InterruptedException ie) {
+          LOGGER.warn("Interrupted or spurious wake up, will check if isActive is set");
+        }
+      }
+      if (isDestroyed) {
+        LOGGER.debug("Wake up by, kill");
+        return false;
+      }
+      LOGGER.debug("Wake up by, activate");
+      return true;
+    }
+  }
+
+  /**
+   * Run given request.
+   *
+   * @return - true if this worker thread got released into pool while running request
+   */
+  private boolean doWork(RequestTask<U> request) throws Exception {
     long st = System.currentTimeMillis();
+    long throttleDelay = request.isBarrier() ? 0 : myPool.tryAcquirePermit(request.getRequestKey());
+    if (throttleDelay > 0) {
+      // give this thread to other request keys, rather than blocking them till permit is available
+      synchronized (localRequestQueueLock) {
+        executingRequestKey = null;
+      }
+      return myPool.deferRequestKey(this, request, throttleDelay);
+    }
     LOGGER.debug("Blocking till work is completed!!");
+    long cpuTime = getCpuTime();
     request.run();
+    synchronized (localRequestQueueLock) {
+      workTimeEwma += WORK_TIME_EWMA_WEIGHT * ((System.nanoTime() - executionStartTime) - workTimeEwma);
+      executingRequestKey = null;
+      if (fairRequestQueue != null) {
+        boolean byCpuTime =
+            asyncRequestSerializerConfig.fairSchedulingPolicy.quantumUnit == FairSchedulingPolicy.QuantumUnit.CPU_TIME;
+        fairRequestQueue.charge(request.getRequestKey(), byCpuTime ? getCpuTime() - cpuTime : 1);
+      }
+    }
+    if (!request.isDone()) {
+      // an AsyncWork is still running or failed attempt is to be retried, free this thread and
+      // resume request key once its last attempt is over
+      String requestKey = request.getRequestKey();
+      LOGGER.debug("Request of request-key {} is pending, detaching it from worker thread", requestKey);
+      boolean released = myPool.detachRequestKey(this, requestKey);
+      request.whenSettled(() -> myPool.settleRequestKey(requestKey, request));
+      return released;
+    }
+    if (request.isCancelled()) {
+      // e.g. cancelled while waiting for its retry backoff, it is not run again
+      LOGGER.debug("Request of request-key {} is cancelled", request.getRequestKey());
+      return false;
+    }
     request.get();
     LOGGER.debug("Time to complete work is {} ms.", System.currentTimeMillis() - st);
-    LOGGER.debug("Current localRequestQueue size is -> {}", localRequestQueue.size());
+    LOGGER.debug("Current localRequestQueue size is -> {}", getWorkQueueSize());
+    return false;
+  }
+
+  /**
+   * To be called by pool, under pool lock, when this worker thread is refused to return as it is
+   * dedicated to a hot request key. It then waits for requests without timing out, till
+   * {@link #unpark()}.
+   *
+   * @return - false if already parked
+   */
+  boolean park() {
+    synchronized (localRequestQueueLock) {
+      if (parked) {
+        return false;
+      }
+      parked = true;
+      return true;
+    }
+  }
+
+  /**
+   * To be called by pool, under pool lock, once request keys of this parked worker thread are not
+   * hot any more, so that it times out and returns into pool when idle.
+   */
+  void unpark() {
+    synchronized (localRequestQueueLock) {
+      parked = false;
+      localRequestQueueLock.notify();
+    }
   }
 
   int getWorkQueueSize() {
-    return localRequestQueue.size();
+    synchronized (localRequestQueueLock) {
+      return localRequestQueue.size();
+    }
   }
 
   /**
    * Thread-Unsafe method to add outbound into worker thread local queue
    *
+   * @param requestKey - request key mapped to this worker thread
    * @param request - Instance of {@link Work}
+   * @param spillRecord - record holding spilled work of request, see
+   *        {@link PoolableWorkerThreadPool#getSpilledRequests(String, Work, long[], SpilledRequests, int)}
    * @return - boolean value to indicate if submission is successful. False indicates, the worker
    *         thread is no longer active.
    */
-  public Future<U> assign(Work<U> request) {
+  RequestFuture<U> assign(String requestKey, Work<U> request, long[] spillRecord) {
     LOGGER.debug("Aquaring lock to add request into local queue of Worker Thread {}", Thread.currentThread().getName());
     synchronized (localRequestQueueLock) {
       LOGGER.debug("Lock received");
       if (isActive) {
-        FutureTask<U> future = new FutureTask<>(request);
-        localRequestQueue.add(future);
+        RequestFuture<U> future;
+        SpilledRequests<U> tail = tailSpilledRequests.get(requestKey);
+        SpilledRequests<U> spilledRequests =
+            myPool.getSpilledRequests(requestKey, request, spillRecord, tail, queuedRequestCount);
+        if (spilledRequests == null) {
+          RequestTask<U> requestTask = myPool.newRequestTask(requestKey, request);
+          localRequestQueue.add(requestTask);
+          // spilled requests queued so far are followed by this one
+          tailSpilledRequests.remove(requestKey);
+          future = requestTask;
+        } else {
+          if (spilledRequests != tail) {
+            localRequestQueue.add(spilledRequests);
+            tailSpilledRequests.put(requestKey, spilledRequests);
+          }
+          future = myPool.addSpilledRequest(spilledRequests, spillRecord);
+        }
+        queuedRequestCount++;
+        localRequestQueueLock.notify();
         LOGGER.debug("Added request into local work queue");
         return future;
       } else {
@@ -177,6 +385,122 @@ public class PoolableWorkerThread<U> extends Thread {
     }
   }
 
+  /**
+   * To be called by pool, to hand over pending requests of a request key to this active worker
+   * thread.
+   */
+  void adopt(final String requestKey, final Collection<RequestTask<U>> requestTasks) {
+    synchronized (localRequestQueueLock) {
+      LOGGER.debug("Adopting {} pending requests of request-key {}", requestTasks.size(), requestKey);
+      currentRequestKeys.add(requestKey);
+      RequestTask<U> lastRequestTask = null;
+      for (RequestTask<U> requestTask : requestTasks) {
+        localRequestQueue.add(requestTask);
+        queuedRequestCount += requestTask.getRequestCount();
+        lastRequestTask = requestTask;
+      }
+      if (lastRequestTask instanceof SpilledRequests) {
+        tailSpilledRequests.put(requestKey, (SpilledRequests<U>) lastRequestTask);
+      }
+      isActive = true;
+      localRequestQueueLock.notify();
+    }
+  }
+
+  /**
+   * To be called by pool, under pool lock, to un-map a request key and move its pending requests
+   * out of this worker thread.
+   *
+   * @return - true if deactivated, i.e. no other request key is mapped
+   */
+  boolean detach(final String requestKey, final Collection<RequestTask<U>> pendingRequestTasks) {
+    synchronized (localRequestQueueLock) {
+      Iterator<RequestTask<U>> iterator = localRequestQueue.iterator();
+      while (iterator.hasNext()) {
+        RequestTask<U> requestTask = iterator.next();
+        if (requestKey.equals(requestTask.getRequestKey())) {
+          iterator.remove();
+          queuedRequestCount -= requestTask.getRequestCount();
+          pendingRequestTasks.add(requestTask);
+        }
+      }
+      tailSpilledRequests.remove(requestKey);
+      currentRequestKeys.remove(requestKey);
+      if (!currentRequestKeys.isEmpty()) {
+        return false;
+      }
+      LOGGER.debug("Safe to release/detach itself as no more request key is mapped");
+      isActive = false;
+      parked = false;
+      return true;
+    }
+  }
+
+  /**
+   * To be called by pool, under pool lock, to move pending requests of a request key out of this
+   * worker thread, so that other worker thread can steal it. Request key being run is never given up,
+   * so requests of a request key are still run one at a time and in order.
+   *
+   * @return - null if no request key can be given up
+   */
+  RequestKeyBacklog<U> giveUpRequestKey() {
+    synchronized (localRequestQueueLock) {
+      if (executingRequestKey == null) {
+        // not busy, it will run them soon
+        return null;
+      }
+      for (RequestTask<U> requestTask : localRequestQueue) {
+        String requestKey = requestTask.getRequestKey();
+        if (!requestKey.equals(executingRequestKey)) {
+          RequestKeyBacklog<U> requestKeyBacklog = new RequestKeyBacklog<>(requestKey);
+          detach(requestKey, requestKeyBacklog.getRequestTasks());
+          return requestKeyBacklog;
+        }
+      }
+      return null;
+    }
+  }
+
+  /**
+   * To be called by pool, under pool lock, on shutdown. Pending requests are handed back, and a poison
+   * pill is queued, so that this worker thread dies once done with request being run.
+   *
+   * @return - pending requests
+   */
+  List<RequestTask<U>> poison() {
+    synchronized (localRequestQueueLock) {
+      List<RequestTask<U>> pendingRequestTasks = new ArrayList<>(localRequestQueue);
+      localRequestQueue.clear();
+      tailSpilledRequests.clear();
+      currentRequestKeys.clear();
+      localRequestQueue.add(new RequestTask<>(POISON_REQUEST_KEY, new PoisonWork<>(), null, null, null));
+      queuedRequestCount = 1;
+      localRequestQueueLock.notify();
+      LOGGER.debug("Poisoned worker thread {}, with {} pending requests", getName(), pendingRequestTasks.size());
+      return pendingRequestTasks;
+    }
+  }
+
+  /**
+   * To be called by pool, under pool lock, before releasing this worker thread.
+   *
+   * @return - true if deactivated, false if something got added in work queue meanwhile
+   */
+  boolean deactivate() {
+    synchronized (localRequestQueueLock) {
+      if (!localRequestQueue.isEmpty()) {
+        LOGGER.debug("something got added in work queue, while I timed-out, back to work");
+        return false;
+      }
+      LOGGER.debug("Safe to release/detach itself from {} requestKey", currentRequestKeys);
+      // PLACE to release/clean-up stuff
+      isActive = false;
+      parked = false;
+      currentRequestKeys.clear();
+      return true;
+    }
+  }
+
   /**
    * To be called by factory, upon getting this instance from pool
    */
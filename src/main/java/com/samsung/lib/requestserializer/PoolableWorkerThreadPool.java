@@ -20,9 +20,21 @@ import org.apache.commons.pool.impl.GenericObjectPool.Config;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
 
 /**
@@ -40,7 +52,63 @@ public class PoolableWorkerThreadPool<U> {
 
   private final GenericObjectPool<PoolableWorkerThread<U>> workerThreadPool;
   private final Map<String, PoolableWorkerThread<U>> requestKeyWorkerThreadMap;
+  /*
+   * Request keys which are not mapped to any worker thread, yet can not be processed by a new
+   * worker thread right away, e.g. an AsyncWork of request key is still running.
+   */
+  private final Map<String, RequestKeyBacklog<U>> detachedRequestKeyMap = new HashMap<>();
+  /*
+   * Detached request keys which are ready to be processed, waiting for a worker thread
+   */
+  private final Deque<RequestKeyBacklog<U>> readyRequestKeys = new ArrayDeque<>();
+  /*
+   * Worker threads borrowed from pool
+   */
+  private final List<PoolableWorkerThread<U>> activeWorkerThreads = new ArrayList<>();
   private final Object workerThreadPoolLock = new Object();
+  private final RequestKeyStateStore requestKeyStateStore;
+  /*
+   * null if hot request key detection is disabled
+   */
+  private final HotRequestKeyTracker hotRequestKeyTracker;
+  private final boolean workerThreadSharing;
+  private final RetryPolicy retryPolicy;
+  private final DeadLetterSink deadLetterSink;
+  /*
+   * null if rate limiting is disabled
+   */
+  private final RateLimiter rateLimiter;
+  /*
+   * Options of request keys of namespaces attached to a worker runtime, overriding pool wide ones
+   */
+  private final Map<String, NamespaceOptions> namespaceOptionsMap = new ConcurrentHashMap<>();
+  /*
+   * Resumes request keys whose failed request waited for its retry backoff, or which waited for
+   * their rate limit, and enqueues delayed requests
+   */
+  private final HierarchicalTimingWheel timingWheel;
+  /*
+   * One per worker thread, request keys are striped over them, null if spilling is disabled
+   */
+  private final SpillStore[] spillStores;
+  private final int spillThreshold;
+  /*
+   * Request keys whose backlog is beyond spill threshold, works of their requests are serialized
+   * before pool lock is taken
+   */
+  private final Set<String> spillingRequestKeys = ConcurrentHashMap.newKeySet();
+  /*
+   * null if request key groups are disabled
+   */
+  private final RequestKeyGroupPolicy requestKeyGroupPolicy;
+  /*
+   * Groups having leased or pending request keys
+   */
+  private final Map<String, RequestKeyGroup<U>> requestKeyGroups = new HashMap<>();
+  /*
+   * Guarded by pool lock
+   */
+  private boolean isShutdown;
 
   /**
    * Construct a worker thread pool with size of predefined or default @see
@@ -54,9 +122,198 @@ public class PoolableWorkerThreadPool<U> {
     this.workerThreadPool = new GenericObjectPool<>(
         new PoolableWorkerThreadFactory<U>(this, asyncRequestSerializerConfig), config);
     this.requestKeyWorkerThreadMap = new HashMap<>();
+    this.requestKeyStateStore = new RequestKeyStateStore(asyncRequestSerializerConfig, this::isRequestKeyActive);
+    int hotRequestKeyCount = Math.min(asyncRequestSerializerConfig.hotRequestKeyCount, config.maxActive - 1);
+    this.hotRequestKeyTracker = hotRequestKeyCount > 0
+        ? new HotRequestKeyTracker(hotRequestKeyCount, asyncRequestSerializerConfig) : null;
+    this.workerThreadSharing = asyncRequestSerializerConfig.workerThreadSharing;
+    this.retryPolicy = asyncRequestSerializerConfig.retryPolicy;
+    this.deadLetterSink = asyncRequestSerializerConfig.deadLetterSink;
+    this.rateLimiter = RateLimiter.isEnabled(asyncRequestSerializerConfig)
+        ? new RateLimiter(asyncRequestSerializerConfig) : null;
+    this.timingWheel = new HierarchicalTimingWheel("PoolableWorkerThreadPool timing wheel",
+        asyncRequestSerializerConfig.timerTickDuration);
+    if (asyncRequestSerializerConfig.spillDirectory == null) {
+      this.spillStores = null;
+    } else {
+      this.spillStores = new SpillStore[config.maxActive];
+      for (int i = 0; i < spillStores.length; i++) {
+        spillStores[i] = new SpillStore(asyncRequestSerializerConfig.spillDirectory,
+            asyncRequestSerializerConfig.spillSegmentSize);
+      }
+    }
+    this.spillThreshold = asyncRequestSerializerConfig.spillThreshold;
+    this.requestKeyGroupPolicy = asyncRequestSerializerConfig.requestKeyGroupPolicy;
     LOGGER.debug("Initialized WorkerThreadPool of size {}", config.maxActive);
   }
 
+  RequestTask<U> newRequestTask(final String requestKey, final Work<U> request) {
+    return new RequestTask<>(requestKey, request, requestKeyStateStore, getRetryPolicy(requestKey),
+        getDeadLetterSink(requestKey));
+  }
+
+  private RetryPolicy getRetryPolicy(final String requestKey) {
+    NamespaceOptions namespaceOptions = getNamespaceOptions(requestKey);
+    return namespaceOptions == null || namespaceOptions.retryPolicy == null ? retryPolicy
+        : namespaceOptions.retryPolicy;
+  }
+
+  private DeadLetterSink getDeadLetterSink(final String requestKey) {
+    NamespaceOptions namespaceOptions = getNamespaceOptions(requestKey);
+    return namespaceOptions == null || namespaceOptions.deadLetterSink == null ? deadLetterSink
+        : namespaceOptions.deadLetterSink;
+  }
+
+  /**
+   * @return - true if request key is mapped to a worker thread, or has pending requests
+   */
+  boolean isRequestKeyActive(final String requestKey) {
+    synchronized (workerThreadPoolLock) {
+      return requestKeyWorkerThreadMap.containsKey(requestKey) || detachedRequestKeyMap.containsKey(requestKey);
+    }
+  }
+
+  /**
+   * @return - request keys mapped to a worker thread, or having pending requests
+   */
+  List<String> getActiveRequestKeys() {
+    synchronized (workerThreadPoolLock) {
+      List<String> requestKeys = new ArrayList<>(requestKeyWorkerThreadMap.keySet());
+      requestKeys.addAll(detachedRequestKeyMap.keySet());
+      return requestKeys;
+    }
+  }
+
+  /**
+   * Serialize work of request into spill store, if backlog of its request key is beyond spill
+   * threshold. Should be called without holding any lock, request is then added into stream of its
+   * request key, see {@link #getSpilledRequests(String, Work, long[], SpilledRequests, int)}.
+   *
+   * @return - handle of record holding work, -1 if work is not spilled
+   */
+  private long spill(final String requestKey, final Work<U> request) {
+    if (spillStores == null || !(request instanceof Serializable) || !spillingRequestKeys.contains(requestKey)) {
+      return -1;
+    }
+    ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+    try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)) {
+      objectOutputStream.writeObject(request);
+    } catch (IOException ioException) {
+      LOGGER.debug("Work of request-key {} can not be serialized, keeping it in memory ({})", requestKey,
+          ioException.toString());
+      return -1;
+    }
+    try {
+      return getSpillStore(requestKey).append(byteArrayOutputStream.toByteArray());
+    } catch (IOException ioException) {
+      LOGGER.warn("Error while spilling work of request-key " + requestKey + ", keeping it in memory", ioException);
+      return -1;
+    }
+  }
+
+  /**
+   * Tell where a new request goes, in stream of its request key. Should be called under lock of queue
+   * or backlog holding stream.
+   *
+   * @param spillRecord - record holding spilled work of request, -1 if work is not spilled, see
+   *        {@link #spill(String, Work)}
+   * @param tail - spilled requests queued last in stream, null if there are none
+   * @param backlogSize - number of requests queued in stream
+   * @return - spilled requests to add request into, either tail ones or new ones to be queued, null if
+   *         request is to be queued in memory
+   */
+  SpilledRequests<U> getSpilledRequests(final String requestKey, final Work<U> request, final long[] spillRecord,
+      final SpilledRequests<U> tail, final int backlogSize) {
+    if (spillStores == null) {
+      return null;
+    }
+    boolean spillDue = tail != null || backlogSize >= spillThreshold;
+    if (spillRecord[0] < 0) {
+      if (spillDue && request instanceof Serializable && spillingRequestKeys.add(requestKey)) {
+        // works are serialized before locks are taken, so spilling starts from next request
+        LOGGER.debug("Backlog of request-key {} is beyond spill threshold, spilling works of its requests",
+            requestKey);
+      }
+      return null;
+    }
+    if (!spillDue) {
+      LOGGER.debug("Backlog of request-key {} is below spill threshold, keeping works of its requests in memory",
+          requestKey);
+      spillingRequestKeys.remove(requestKey);
+      return null;
+    }
+    return tail != null ? tail : new SpilledRequests<>(requestKey, getSpillStore(requestKey), requestKeyStateStore,
+        getRetryPolicy(requestKey), getDeadLetterSink(requestKey));
+  }
+
+  /**
+   * Add request whose work is spilled into given spilled requests, see
+   * {@link #getSpilledRequests(String, Work, long[], SpilledRequests, int)}.
+   */
+  RequestFuture<U> addSpilledRequest(final SpilledRequests<U> spilledRequests, final long[] spillRecord) {
+    RequestFuture<U> future = spilledRequests.add(spillRecord[0]);
+    spillRecord[0] = -1;
+    return future;
+  }
+
+  /*
+   * Add request at tail of backlog of a detached request key. Should be called under pool lock.
+   */
+  private RequestFuture<U> addRequest(final RequestKeyBacklog<U> requestKeyBacklog, final Work<U> request,
+      final long[] spillRecord) {
+    String requestKey = requestKeyBacklog.getRequestKey();
+    RequestTask<U> lastRequestTask = requestKeyBacklog.getRequestTasks().peekLast();
+    SpilledRequests<U> tail = lastRequestTask instanceof SpilledRequests ? (SpilledRequests<U>) lastRequestTask
+        : null;
+    SpilledRequests<U> spilledRequests =
+        getSpilledRequests(requestKey, request, spillRecord, tail, requestKeyBacklog.size());
+    if (spilledRequests == null) {
+      RequestTask<U> requestTask = newRequestTask(requestKey, request);
+      requestKeyBacklog.add(requestTask);
+      return requestTask;
+    }
+    if (spilledRequests != tail) {
+      requestKeyBacklog.add(spilledRequests);
+    }
+    return addSpilledRequest(spilledRequests, spillRecord);
+  }
+
+  private SpillStore getSpillStore(final String requestKey) {
+    return spillStores[Math.floorMod(requestKey.hashCode(), spillStores.length)];
+  }
+
+  /*
+   * Forget spilled work of a request not added into stream of its request key, e.g. it is rejected
+   */
+  private void discardSpillRecord(final String requestKey, final long[] spillRecord) {
+    if (spillRecord[0] >= 0) {
+      getSpillStore(requestKey).discard(spillRecord[0]);
+      spillRecord[0] = -1;
+    }
+  }
+
+  /**
+   * @return - number of works held in spill stores
+   */
+  long getSpilledRequestCount() {
+    if (spillStores == null) {
+      return 0;
+    }
+    long spilledRequestCount = 0;
+    for (SpillStore spillStore : spillStores) {
+      spilledRequestCount += spillStore.size();
+    }
+    return spilledRequestCount;
+  }
+
+  /**
+   * @return - hot request keys, with their submit rate (per second), empty if hot request key
+   *         detection is disabled
+   */
+  public Map<String, Double> getHotRequestKeys() {
+    return hotRequestKeyTracker == null ? Collections.emptyMap() : hotRequestKeyTracker.getHotRequestKeys();
+  }
+
   /**
    * This function returns an instance of pre-initialized
    * {@link PoolableWorkerThread} from underlying {@link GenericObjectPool}
@@ -72,9 +329,8 @@ public class PoolableWorkerThreadPool<U> {
         LOGGER.debug("No associated PoolableWorkerThread found for request key {}", requestKey);
         LOGGER.debug("Requesting worker thread pool to return an available worker thread, this call could be blocking");
         do {
-          try {
-            poolableWorkerThread = workerThreadPool.borrowObject();
-          } catch (NoSuchElementException nsee) {
+          poolableWorkerThread = borrowPoolableWorkerThread();
+          if (poolableWorkerThread == null) {
             LOGGER.debug("No thread worker available in pool, will wait till old worker thread returns itself");
             try {
               workerThreadPoolLock.wait();
@@ -87,7 +343,7 @@ public class PoolableWorkerThreadPool<U> {
         while (poolableWorkerThread == null);
         LOGGER.debug("Worker thread received");
         requestKeyWorkerThreadMap.put(requestKey, poolableWorkerThread);
-        poolableWorkerThread.setCurrentRequestKey(requestKey);
+        poolableWorkerThread.addCurrentRequestKey(requestKey);
         LOGGER.debug("Worker thread {} mapped to request-key {}", poolableWorkerThread, requestKey);
       }
       LOGGER.debug("Worker thread returned in {} ms. from pool", System.currentTimeMillis() - st);
@@ -96,21 +352,530 @@ public class PoolableWorkerThreadPool<U> {
   }
 
   /**
-   * This function returns and un-map outbound-key to Worker Thread
+   * Add request into queue of worker thread mapped to request key, a new worker thread is mapped
+   * if none is mapped. If request key is detached, request is held in its backlog.
+   *
+   * @return - future of request, null if mapped worker thread is no longer active
+   * @throws Exception
+   */
+  RequestFuture<U> assign(final String requestKey, final Work<U> request) throws Exception {
+    long[] spillRecord = {spill(requestKey, request)};
+    try {
+      return assignRequest(requestKey, request, spillRecord);
+    } finally {
+      discardSpillRecord(requestKey, spillRecord);
+    }
+  }
+
+  /**
+   * See {@link #assign(String, Work)}, work of request is already spilled in given record, if any.
+   */
+  private RequestFuture<U> assignRequest(final String requestKey, final Work<U> request, final long[] spillRecord)
+      throws Exception {
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown) {
+        throw new AsyncRequestSerializerException("Worker thread pool is shut down");
+      }
+      // a barrier is not a request of its own, so it does not make request key hot
+      if (hotRequestKeyTracker != null && !(request instanceof BarrierWork)) {
+        hotRequestKeyTracker.record(requestKey);
+      }
+      RequestKeyBacklog<U> requestKeyBacklog = detachedRequestKeyMap.get(requestKey);
+      if (requestKeyBacklog != null) {
+        LOGGER.debug("Request-key {} is detached, adding request into its backlog", requestKey);
+        RequestKeyGroup<U> requestKeyGroup = requestKeyGroupPolicy == null ? null
+            : requestKeyGroups.get(requestKeyGroupPolicy.groupFunction.apply(requestKey));
+        if (requestKeyGroup != null && requestKeyGroup.isPending(requestKey)) {
+          requestKeyGroup.addPending(requestKeyBacklog, request instanceof BarrierWork);
+        }
+        return addRequest(requestKeyBacklog, request, spillRecord);
+      }
+      if (requestKeyGroupPolicy != null && !requestKeyWorkerThreadMap.containsKey(requestKey)) {
+        RequestKeyGroup<U> requestKeyGroup = getRequestKeyGroup(requestKey);
+        if (!requestKeyGroup.tryLease(requestKey)) {
+          LOGGER.debug("Request key group {} holds {} leases, request-key {} waits in its pending queue",
+              requestKeyGroup.getName(), requestKeyGroup.getLeaseCount(), requestKey);
+          requestKeyBacklog = new RequestKeyBacklog<>(requestKey);
+          requestKeyGroup.addPending(requestKeyBacklog, request instanceof BarrierWork);
+          detachedRequestKeyMap.put(requestKey, requestKeyBacklog);
+          return addRequest(requestKeyBacklog, request, spillRecord);
+        }
+      }
+      PoolableWorkerThread<U> poolableWorkerThread = getPoolableWorkerThread(requestKey);
+      LOGGER.debug("Received Worker Thread {} against request key {}", poolableWorkerThread.getName(), requestKey);
+      return poolableWorkerThread.assign(requestKey, request, spillRecord);
+    }
+  }
+
+  /**
+   * Add request into stream of its request key, like {@link #assign(String, Work)}, however never
+   * waits for a worker thread. If none is mapped, request key is resumed as a detached one. To be used
+   * by timing wheel thread, and for barriers.
+   *
+   * @return - future of request
    * @throws Exception
    */
-  public void returnPoolableWorkerThread(PoolableWorkerThread<U> workerThread) throws Exception {
+  RequestFuture<U> enqueue(final String requestKey, final Work<U> request) throws Exception {
+    long[] spillRecord = {spill(requestKey, request)};
+    try {
+      return enqueueRequest(requestKey, request, spillRecord);
+    } finally {
+      discardSpillRecord(requestKey, spillRecord);
+    }
+  }
+
+  private RequestFuture<U> enqueueRequest(final String requestKey, final Work<U> request, final long[] spillRecord)
+      throws Exception {
+    RequestFuture<U> future;
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown) {
+        throw new AsyncRequestSerializerException("Worker thread pool is shut down");
+      }
+      boolean detached = false;
+      if (!requestKeyWorkerThreadMap.containsKey(requestKey) && !detachedRequestKeyMap.containsKey(requestKey)) {
+        LOGGER.debug("No worker thread mapped to request-key {}, enqueuing it as a detached one", requestKey);
+        detachedRequestKeyMap.put(requestKey, new RequestKeyBacklog<>(requestKey));
+        detached = true;
+      }
+      // mapped worker thread is active under pool lock, so this does not wait
+      future = assignRequest(requestKey, request, spillRecord);
+      if (detached) {
+        resumeRequestKey(requestKey);
+      }
+    }
+    return future;
+  }
+
+  /**
+   * Run given task after given delay (in ms.) on timing wheel thread, it should never block.
+   */
+  HierarchicalTimingWheel.Timeout schedule(final Runnable task, final long delay) {
+    return timingWheel.schedule(task, delay);
+  }
+
+  /**
+   * This function returns and un-map outbound-keys to Worker Thread, unless something got added into
+   * its queue meanwhile or an outbound-key is hot (worker thread stays dedicated to it). If a
+   * detached request key is ready, worker thread adopts it instead of returning into pool.
+   *
+   * @return - true if worker thread is returned into pool
+   * @throws Exception
+   */
+  public boolean returnPoolableWorkerThread(PoolableWorkerThread<U> workerThread) throws Exception {
     long st = System.currentTimeMillis();
     LOGGER.debug("Going to acquire lock to return WT {} to pool", workerThread.getName());
     synchronized (workerThreadPoolLock) {
-      LOGGER.debug("Undo mapping of request-key {} from this worker thread", workerThread.getCurrentRequestKey());
-      requestKeyWorkerThreadMap.remove(workerThread.getCurrentRequestKey());
-      LOGGER.debug("Returning worker thread {} into pool", workerThread.getName());
-      workerThreadPool.returnObject(workerThread);
-      LOGGER.debug("Returning worker thread {} into pool - [OK]", workerThread.getName());
+      if (isDedicated(workerThread)) {
+        if (workerThread.park()) {
+          LOGGER.debug("Worker thread {} stays dedicated to hot request-key", workerThread.getName());
+          scheduleDedicationCheck(workerThread);
+        }
+        return false;
+      }
+      List<String> requestKeys = new ArrayList<>(workerThread.getCurrentRequestKeys());
+      if (!workerThread.deactivate()) {
+        return false;
+      }
+      LOGGER.debug("Undo mapping of request-keys {} from this worker thread", requestKeys);
+      for (String requestKey : requestKeys) {
+        requestKeyWorkerThreadMap.remove(requestKey);
+        spillingRequestKeys.remove(requestKey);
+      }
+      boolean returned = releasePoolableWorkerThread(workerThread);
+      // only once worker thread is released, so that it is not handed to pending request keys meanwhile
+      for (String requestKey : requestKeys) {
+        releaseLease(requestKey);
+      }
+      LOGGER.debug("Worker thread returned in {} ms. to pool", System.currentTimeMillis() - st);
+      return returned;
+    }
+  }
+
+  /**
+   * Unpark given parked worker thread once its request keys are not hot, checked at end of every
+   * window of hot request key detection, as that is when they may cool down.
+   */
+  private void scheduleDedicationCheck(PoolableWorkerThread<U> workerThread) {
+    timingWheel.schedule(() -> {
+      synchronized (workerThreadPoolLock) {
+        if (isShutdown) {
+          return;
+        }
+        if (isDedicated(workerThread)) {
+          scheduleDedicationCheck(workerThread);
+          return;
+        }
+        LOGGER.debug("Worker thread {} is no longer dedicated to hot request-key", workerThread.getName());
+        workerThread.unpark();
+      }
+    }, hotRequestKeyTracker.getWindowRemaining());
+  }
+
+  /**
+   * Detach request key from worker thread, pending requests of request key are held in backlog till
+   * {@link #resumeRequestKey(String)} is called.
+   *
+   * @return - true if worker thread is returned into pool
+   * @throws Exception
+   */
+  boolean detachRequestKey(PoolableWorkerThread<U> workerThread, final String requestKey) throws Exception {
+    synchronized (workerThreadPoolLock) {
+      RequestKeyBacklog<U> requestKeyBacklog = new RequestKeyBacklog<>(requestKey);
+      boolean deactivated = workerThread.detach(requestKey, requestKeyBacklog.getRequestTasks());
+      LOGGER.debug("Detached request-key {} with {} pending requests from worker thread {}", requestKey,
+          requestKeyBacklog.size(), workerThread.getName());
+      requestKeyWorkerThreadMap.remove(requestKey);
+      detachedRequestKeyMap.put(requestKey, requestKeyBacklog);
+      boolean released = deactivated && releasePoolableWorkerThread(workerThread);
+      releaseLease(requestKey);
+      return released;
+    }
+  }
+
+  /**
+   * Take a rate limit permit for a request of given request key.
+   *
+   * @return - 0 if request may run now, otherwise time in ms. to wait for a permit
+   */
+  long tryAcquirePermit(final String requestKey) {
+    NamespaceOptions namespaceOptions = getNamespaceOptions(requestKey);
+    if (namespaceOptions != null && namespaceOptions.rateLimiter != null) {
+      return namespaceOptions.rateLimiter.tryAcquire(WorkerRuntime.toNamespaceRequestKey(requestKey));
+    }
+    return rateLimiter == null ? 0 : rateLimiter.tryAcquire(requestKey);
+  }
+
+  /**
+   * Override retry policy, dead letter sink and rate limits of request keys of given namespace by the
+   * ones set in given configuration, other options of configuration are ignored. Request keys are
+   * handed to them without namespace prefix. See {@link WorkerRuntime}.
+   */
+  void setNamespaceConfig(final String namespace, final AsyncRequestSerializerConfig namespaceConfig) {
+    namespaceOptionsMap.put(namespace, new NamespaceOptions(namespaceConfig));
+    LOGGER.debug("Request keys of namespace {} have their own options", namespace);
+  }
+
+  void removeNamespaceConfig(final String namespace) {
+    namespaceOptionsMap.remove(namespace);
+  }
+
+  /**
+   * @return - null if request key follows pool wide options
+   */
+  private NamespaceOptions getNamespaceOptions(final String requestKey) {
+    return namespaceOptionsMap.isEmpty() ? null : namespaceOptionsMap.get(WorkerRuntime.getNamespace(requestKey));
+  }
+
+  /**
+   * Detach a throttled request key from worker thread, with its not yet run request put back at head
+   * of its backlog, and resume it once it may get a rate limit permit.
+   *
+   * @return - true if worker thread is returned into pool
+   * @throws Exception
+   */
+  boolean deferRequestKey(PoolableWorkerThread<U> workerThread, final RequestTask<U> requestTask, long delay)
+      throws Exception {
+    String requestKey = requestTask.getRequestKey();
+    boolean released;
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown) {
+        requestTask.cancel(false);
+        return false;
+      }
+      released = detachRequestKey(workerThread, requestKey);
+      detachedRequestKeyMap.get(requestKey).getRequestTasks().addFirst(requestTask);
+    }
+    LOGGER.debug("Request-key {} is throttled, will be resumed in {} ms.", requestKey, delay);
+    timingWheel.schedule(() -> resumeRequestKey(requestKey), delay);
+    return released;
+  }
+
+  /**
+   * To be called once last attempt of detached request key's pending request is over. If it is to be
+   * retried, it is put back at head of backlog and request key is resumed after retry delay.
+   */
+  void settleRequestKey(final String requestKey, final RequestTask<U> requestTask) {
+    if (!requestTask.isRetryPending()) {
+      resumeRequestKey(requestKey);
+      return;
+    }
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown) {
+        requestTask.cancel(false);
+        return;
+      }
+      detachedRequestKeyMap.get(requestKey).getRequestTasks().addFirst(requestTask);
+    }
+    LOGGER.debug("Request-key {} will be resumed in {} ms. to retry its failed request", requestKey,
+        requestTask.getRetryDelay());
+    timingWheel.schedule(() -> resumeRequestKey(requestKey), requestTask.getRetryDelay());
+  }
+
+  /**
+   * Resume a detached request key, its backlog is handed over to an available worker thread, or
+   * queued till some worker thread is returned.
+   */
+  void resumeRequestKey(final String requestKey) {
+    synchronized (workerThreadPoolLock) {
+      RequestKeyBacklog<U> requestKeyBacklog = detachedRequestKeyMap.get(requestKey);
+      if (isShutdown) {
+        LOGGER.debug("Worker thread pool is shut down, not resuming request-key {}", requestKey);
+        return;
+      }
+      if (requestKeyBacklog == null) {
+        LOGGER.warn("Request-key {} to resume is not detached. This should not happen!.", requestKey);
+        return;
+      }
+      if (requestKeyBacklog.isEmpty()) {
+        LOGGER.debug("Nothing pending for request-key {}, no need of a worker thread", requestKey);
+        detachedRequestKeyMap.remove(requestKey);
+        spillingRequestKeys.remove(requestKey);
+        return;
+      }
+      if (requestKeyGroupPolicy != null) {
+        RequestKeyGroup<U> requestKeyGroup = getRequestKeyGroup(requestKey);
+        if (!requestKeyGroup.tryLease(requestKey)) {
+          LOGGER.debug("Request key group {} holds {} leases, request-key {} waits in its pending queue",
+              requestKeyGroup.getName(), requestKeyGroup.getLeaseCount(), requestKey);
+          requestKeyGroup.addPending(requestKeyBacklog);
+          return;
+        }
+      }
+      dispatchRequestKey(requestKeyBacklog);
+    }
+  }
+
+  /**
+   * Hand over backlog of a detached request key to an available worker thread, or queue it till some
+   * worker thread is returned. Should be called under pool lock.
+   */
+  private void dispatchRequestKey(RequestKeyBacklog<U> requestKeyBacklog) {
+    String requestKey = requestKeyBacklog.getRequestKey();
+    PoolableWorkerThread<U> poolableWorkerThread = null;
+    try {
+      poolableWorkerThread = borrowPoolableWorkerThread();
+    } catch (Exception exception) {
+      LOGGER.error("Error while borrowing worker thread for request-key " + requestKey, exception);
+    }
+    if (poolableWorkerThread == null) {
+      LOGGER.debug("No thread worker available in pool, request-key {} will wait for a returning one", requestKey);
+      readyRequestKeys.add(requestKeyBacklog);
+    } else {
+      adoptRequestKey(poolableWorkerThread, requestKeyBacklog);
+    }
+  }
+
+  private RequestKeyGroup<U> getRequestKeyGroup(final String requestKey) {
+    return requestKeyGroups.computeIfAbsent(requestKeyGroupPolicy.groupFunction.apply(requestKey),
+        group -> new RequestKeyGroup<>(group, requestKeyGroupPolicy.getMaxActiveRequestKeys(group),
+            requestKeyGroupPolicy.getQueueCapacity(group)));
+  }
+
+  /**
+   * Give up lease of a request key, which is no more mapped to a worker thread, and dispatch pending
+   * request keys of its group which may now hold a lease. Should be called under pool lock.
+   */
+  private void releaseLease(final String requestKey) {
+    if (requestKeyGroupPolicy == null) {
+      return;
+    }
+    String group = requestKeyGroupPolicy.groupFunction.apply(requestKey);
+    RequestKeyGroup<U> requestKeyGroup = requestKeyGroups.get(group);
+    if (requestKeyGroup == null || !requestKeyGroup.release(requestKey)) {
+      return;
+    }
+    RequestKeyBacklog<U> requestKeyBacklog;
+    while ((requestKeyBacklog = requestKeyGroup.pollPending()) != null) {
+      LOGGER.debug("Request-key {} of request key group {} got a lease", requestKeyBacklog.getRequestKey(), group);
+      dispatchRequestKey(requestKeyBacklog);
+    }
+    if (requestKeyGroup.isIdle()) {
+      requestKeyGroups.remove(group);
+    }
+  }
+
+  /**
+   * Move pending requests of a request key, which is not being run, from the most loaded active
+   * worker thread to given idle one.
+   *
+   * @return - true if a request key is stolen
+   */
+  boolean stealRequestKey(PoolableWorkerThread<U> thief) {
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown || isDedicated(thief)) {
+        return false;
+      }
+      List<PoolableWorkerThread<U>> victims = new ArrayList<>(activeWorkerThreads);
+      victims.remove(thief);
+      Map<PoolableWorkerThread<U>, Double> loads = new HashMap<>();
+      for (PoolableWorkerThread<U> victim : victims) {
+        loads.put(victim, victim.getLoad());
+      }
+      victims.sort((victim1, victim2) -> Double.compare(loads.get(victim2), loads.get(victim1)));
+      for (PoolableWorkerThread<U> victim : victims) {
+        RequestKeyBacklog<U> requestKeyBacklog = victim.giveUpRequestKey();
+        if (requestKeyBacklog != null) {
+          LOGGER.debug("Worker thread {} steals request-key {} with {} pending requests from worker thread {}",
+              thief.getName(), requestKeyBacklog.getRequestKey(), requestKeyBacklog.size(), victim.getName());
+          adoptRequestKey(thief, requestKeyBacklog);
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+
+  /**
+   * Shut down this pool, requests not yet started are cancelled. Active worker threads are poisoned
+   * (see {@link PoisonWork}), so they die once done with request being run, and idle ones are killed
+   * by closing underlying pool.
+   */
+  void shutdown() {
+    timingWheel.stop();
+    List<RequestTask<U>> pendingRequestTasks = new ArrayList<>();
+    synchronized (workerThreadPoolLock) {
+      if (isShutdown) {
+        return;
+      }
+      isShutdown = true;
+      for (PoolableWorkerThread<U> workerThread : activeWorkerThreads) {
+        pendingRequestTasks.addAll(workerThread.poison());
+      }
+      activeWorkerThreads.clear();
+      requestKeyWorkerThreadMap.clear();
+      for (RequestKeyBacklog<U> requestKeyBacklog : detachedRequestKeyMap.values()) {
+        pendingRequestTasks.addAll(requestKeyBacklog.getRequestTasks());
+      }
+      detachedRequestKeyMap.clear();
+      readyRequestKeys.clear();
+      requestKeyGroups.clear();
+      spillingRequestKeys.clear();
       workerThreadPoolLock.notifyAll();
     }
-    LOGGER.debug("Return worker thread into pool - [OK]");
-    LOGGER.debug("Worker thread returned in {} ms. to pool", System.currentTimeMillis() - st);
+    try {
+      workerThreadPool.close();
+    } catch (Exception exception) {
+      LOGGER.warn("Error while closing worker thread pool", exception);
+    }
+    LOGGER.info("Worker thread pool is shut down, cancelling {} pending requests", pendingRequestTasks.size());
+    for (RequestTask<U> requestTask : pendingRequestTasks) {
+      requestTask.cancel(false);
+    }
+    if (spillStores != null) {
+      for (SpillStore spillStore : spillStores) {
+        spillStore.close();
+      }
+    }
+  }
+
+  /**
+   * Return deactivated worker thread into pool, or hand it a ready request key. Should be called under
+   * pool lock.
+   */
+  private boolean releasePoolableWorkerThread(PoolableWorkerThread<U> workerThread) throws Exception {
+    RequestKeyBacklog<U> requestKeyBacklog = readyRequestKeys.poll();
+    if (requestKeyBacklog != null) {
+      adoptRequestKey(workerThread, requestKeyBacklog);
+      return false;
+    }
+    LOGGER.debug("Returning worker thread {} into pool", workerThread.getName());
+    activeWorkerThreads.remove(workerThread);
+    workerThreadPool.returnObject(workerThread);
+    LOGGER.debug("Returning worker thread {} into pool - [OK]", workerThread.getName());
+    workerThreadPoolLock.notifyAll();
+    return true;
+  }
+
+  /**
+   * Borrow an idle worker thread from pool. If worker thread sharing is enabled, the least loaded of
+   * two randomly chosen active worker threads (power of two choices) is shared instead, if it has
+   * nothing to do, or if no worker thread is idle. Should be called under pool lock.
+   *
+   * @return - null if no worker thread is available
+   */
+  private PoolableWorkerThread<U> borrowPoolableWorkerThread() throws Exception {
+    PoolableWorkerThread<U> leastLoaded = workerThreadSharing ? chooseSharedWorkerThread() : null;
+    if (leastLoaded != null && leastLoaded.getLoad() == 0) {
+      // as good as an idle one, and keeps fewer worker threads busy
+      LOGGER.debug("Sharing worker thread {}, which has nothing to do", leastLoaded.getName());
+      return leastLoaded;
+    }
+    try {
+      PoolableWorkerThread<U> poolableWorkerThread = workerThreadPool.borrowObject();
+      activeWorkerThreads.add(poolableWorkerThread);
+      return poolableWorkerThread;
+    } catch (NoSuchElementException nsee) {
+      if (leastLoaded != null) {
+        LOGGER.debug("Sharing least loaded worker thread {}", leastLoaded.getName());
+      }
+      return leastLoaded;
+    }
+  }
+
+  /**
+   * @return - least loaded of two distinct randomly chosen active worker threads, which are not
+   *         dedicated to a hot request key, null if there is none
+   */
+  private PoolableWorkerThread<U> chooseSharedWorkerThread() {
+    List<PoolableWorkerThread<U>> candidates = new ArrayList<>(activeWorkerThreads.size());
+    for (PoolableWorkerThread<U> activeWorkerThread : activeWorkerThreads) {
+      if (!isDedicated(activeWorkerThread)) {
+        candidates.add(activeWorkerThread);
+      }
+    }
+    if (candidates.isEmpty()) {
+      return null;
+    }
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    int firstIndex = random.nextInt(candidates.size());
+    PoolableWorkerThread<U> first = candidates.get(firstIndex);
+    if (candidates.size() == 1) {
+      return first;
+    }
+    // any index but first one
+    int secondIndex = (firstIndex + 1 + random.nextInt(candidates.size() - 1)) % candidates.size();
+    PoolableWorkerThread<U> second = candidates.get(secondIndex);
+    return first.getLoad() <= second.getLoad() ? first : second;
+  }
+
+  /**
+   * @return - true if worker thread is mapped to a hot request key
+   */
+  private boolean isDedicated(PoolableWorkerThread<U> workerThread) {
+    if (hotRequestKeyTracker == null) {
+      return false;
+    }
+    for (String requestKey : workerThread.getCurrentRequestKeys()) {
+      if (hotRequestKeyTracker.isHot(requestKey)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private void adoptRequestKey(PoolableWorkerThread<U> workerThread, RequestKeyBacklog<U> requestKeyBacklog) {
+    String requestKey = requestKeyBacklog.getRequestKey();
+    LOGGER.debug("Worker thread {} adopts detached request-key {}", workerThread.getName(), requestKey);
+    detachedRequestKeyMap.remove(requestKey);
+    requestKeyWorkerThreadMap.put(requestKey, workerThread);
+    workerThread.adopt(requestKey, requestKeyBacklog.getRequestTasks());
+  }
+
+  /**
+   * Options of a namespace overriding pool wide ones, null if not set for namespace.
+   */
+  private static final class NamespaceOptions {
+    private final RetryPolicy retryPolicy;
+    private final DeadLetterSink deadLetterSink;
+    private final RateLimiter rateLimiter;
+
+    private NamespaceOptions(final AsyncRequestSerializerConfig namespaceConfig) {
+      this.retryPolicy = namespaceConfig.retryPolicy;
+      DeadLetterSink namespaceDeadLetterSink = namespaceConfig.deadLetterSink;
+      this.deadLetterSink = namespaceDeadLetterSink == null ? null
+          : (requestKey, request, failure) -> namespaceDeadLetterSink.accept(
+              WorkerRuntime.toNamespaceRequestKey(requestKey), request, failure);
+      this.rateLimiter = RateLimiter.isEnabled(namespaceConfig) ? new RateLimiter(namespaceConfig) : null;
+    }
   }
 }
@@ -0,0 +1,36 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * A token bucket rate limit, allowing given rate of requests on average, and bursts up to given size.
+ */
+public class RateLimit {
+  final double permitsPerSecond;
+  final int burst;
+
+  /**
+   * @param permitsPerSecond - average number of requests allowed per second
+   * @param burst - maximum number of requests allowed at once
+   */
+  public RateLimit(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Rate limit should allow at least one request");
+    }
+    this.permitsPerSecond = permitsPerSecond;
+    this.burst = burst;
+  }
+}
@@ -0,0 +1,171 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Token bucket rate limiter per rate limit key (request key mapped by configured function) and
+ * globally. Buckets are refilled lazily on access, and a bucket which has refilled completely is
+ * forgotten, as it is no different from a new one. So only recently throttled keys take memory.
+ * <p>
+ * Buckets are spread over lock stripes by rate limit key. Each stripe keeps its buckets in access
+ * order, and every permit request evicts at most a few refilled buckets from head of its stripe, so
+ * no call walks all buckets.
+ */
+class RateLimiter {
+
+  private static final int STRIPE_COUNT = 64;
+  private static final int SWEEP_BATCH_SIZE = 2;
+
+  private final Function<String, String> rateLimitKeyFunction;
+  private final RateLimit defaultRateLimit;
+  private final Map<String, RateLimit> rateLimits;
+  private final TokenBucket globalTokenBucket;
+  private final Stripe[] stripes = new Stripe[STRIPE_COUNT];
+
+  RateLimiter(final AsyncRequestSerializerConfig asyncRequestSerializerConfig) {
+    this.rateLimitKeyFunction = asyncRequestSerializerConfig.rateLimitKeyFunction;
+    this.defaultRateLimit = asyncRequestSerializerConfig.rateLimit;
+    this.rateLimits = asyncRequestSerializerConfig.rateLimits;
+    RateLimit globalRateLimit = asyncRequestSerializerConfig.globalRateLimit;
+    this.globalTokenBucket = globalRateLimit == null ? null : new TokenBucket(globalRateLimit, System.nanoTime());
+    for (int index = 0; index < STRIPE_COUNT; index++) {
+      stripes[index] = new Stripe();
+    }
+  }
+
+  /**
+   * @return - true if any rate limit is configured
+   */
+  static boolean isEnabled(final AsyncRequestSerializerConfig asyncRequestSerializerConfig) {
+    return asyncRequestSerializerConfig.globalRateLimit != null || asyncRequestSerializerConfig.rateLimit != null
+        || !asyncRequestSerializerConfig.rateLimits.isEmpty();
+  }
+
+  /**
+   * Take a permit for a request of given request key, if both its bucket and global bucket have one.
+   *
+   * @return - 0 if permit is taken, otherwise time in ms. to wait before trying again
+   */
+  long tryAcquire(final String requestKey) {
+    long now = System.nanoTime();
+    String rateLimitKey = rateLimitKeyFunction.apply(requestKey);
+    Stripe stripe = stripes[(rateLimitKey.hashCode() & Integer.MAX_VALUE) % STRIPE_COUNT];
+    // stripe lock is taken before global bucket lock
+    synchronized (stripe) {
+      stripe.sweep(now);
+      TokenBucket tokenBucket = stripe.tokenBucketMap.get(rateLimitKey);
+      if (tokenBucket == null) {
+        RateLimit rateLimit = rateLimits.getOrDefault(rateLimitKey, defaultRateLimit);
+        if (rateLimit != null) {
+          tokenBucket = new TokenBucket(rateLimit, now);
+          stripe.tokenBucketMap.put(rateLimitKey, tokenBucket);
+        }
+      }
+      long waitTime = tokenBucket == null ? 0 : tokenBucket.waitTime(now);
+      if (globalTokenBucket == null) {
+        return take(tokenBucket, null, waitTime);
+      }
+      synchronized (globalTokenBucket) {
+        return take(tokenBucket, globalTokenBucket, Math.max(waitTime, globalTokenBucket.waitTime(now)));
+      }
+    }
+  }
+
+  /**
+   * Take a token from given buckets (either may be null) if no wait is needed.
+   *
+   * @return - 0 if tokens are taken, otherwise time in ms. to wait before trying again
+   */
+  private static long take(TokenBucket tokenBucket, TokenBucket globalTokenBucket, long waitTime) {
+    if (waitTime > 0) {
+      return TimeUnit.NANOSECONDS.toMillis(waitTime) + 1;
+    }
+    if (tokenBucket != null) {
+      tokenBucket.tokens--;
+    }
+    if (globalTokenBucket != null) {
+      globalTokenBucket.tokens--;
+    }
+    return 0;
+  }
+
+  int size() {
+    int size = 0;
+    for (Stripe stripe : stripes) {
+      synchronized (stripe) {
+        size += stripe.tokenBucketMap.size();
+      }
+    }
+    return size;
+  }
+
+  private static final class Stripe {
+    /*
+     * Buckets in access order, so least recently used ones are at head
+     */
+    private final Map<String, TokenBucket> tokenBucketMap = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Forget refilled buckets at head, at most a few of them. Should be called under lock of this
+     * stripe.
+     */
+    void sweep(long now) {
+      Iterator<TokenBucket> iterator = tokenBucketMap.values().iterator();
+      for (int swept = 0; swept < SWEEP_BATCH_SIZE && iterator.hasNext(); swept++) {
+        TokenBucket tokenBucket = iterator.next();
+        tokenBucket.refill(now);
+        if (tokenBucket.tokens < tokenBucket.rateLimit.burst) {
+          return;
+        }
+        iterator.remove();
+      }
+    }
+  }
+
+  private static final class TokenBucket {
+    private final RateLimit rateLimit;
+    private double tokens;
+    private long lastRefillTime;
+
+    TokenBucket(RateLimit rateLimit, long now) {
+      this.rateLimit = rateLimit;
+      this.tokens = rateLimit.burst;
+      this.lastRefillTime = now;
+    }
+
+    void refill(long now) {
+      tokens = Math.min(rateLimit.burst, tokens + (now - lastRefillTime) * rateLimit.permitsPerSecond / 1e9);
+      lastRefillTime = now;
+    }
+
+    /**
+     * @return - time in ns. till a permit is available, after refilling
+     */
+    long waitTime(long now) {
+      refill(now);
+      if (tokens >= 1) {
+        return 0;
+      }
+      return (long) ((1 - tokens) * 1e9 / rateLimit.permitsPerSecond);
+    }
+  }
+}
@@ -0,0 +1,32 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.concurrent.Future;
+
+/**
+ * Future of a submitted request, either a {@link RequestTask} or a request held in
+ * {@link SpilledRequests}.
+ *
+ * @param <U> - result type of work
+ */
+interface RequestFuture<U> extends Future<U> {
+
+  /**
+   * Run given action once this future is done, immediately if it is already done.
+   */
+  void whenDone(Runnable action);
+}
@@ -0,0 +1,72 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pending requests of a request key, which is currently not mapped to any worker thread
+ * (e.g. its head {@link AsyncWork} is still running). New requests of this request key are
+ * appended here, till a worker thread adopts it.
+ * <p>
+ * This class is not thread safe, it is guarded by {@link PoolableWorkerThreadPool} lock.
+ *
+ * @param <U> - result type of work
+ */
+class RequestKeyBacklog<U> {
+
+  private final String requestKey;
+  private final Deque<RequestTask<U>> requestTasks = new ArrayDeque<>();
+
+  RequestKeyBacklog(final String requestKey) {
+    this.requestKey = requestKey;
+  }
+
+  String getRequestKey() {
+    return requestKey;
+  }
+
+  Deque<RequestTask<U>> getRequestTasks() {
+    return requestTasks;
+  }
+
+  void add(RequestTask<U> requestTask) {
+    requestTasks.add(requestTask);
+  }
+
+  boolean isEmpty() {
+    return requestTasks.isEmpty();
+  }
+
+  /**
+   * @return - number of queued tasks, spilled requests queued as one
+   */
+  int size() {
+    return requestTasks.size();
+  }
+
+  /**
+   * @return - number of pending requests, spilled ones included
+   */
+  int getRequestCount() {
+    int requestCount = 0;
+    for (RequestTask<U> requestTask : requestTasks) {
+      requestCount += requestTask.getRequestCount();
+    }
+    return requestCount;
+  }
+}
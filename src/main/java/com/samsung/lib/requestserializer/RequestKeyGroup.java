@@ -0,0 +1,128 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Leases and pending request keys of a group, see {@link RequestKeyGroupPolicy}.
+ * <p>
+ * This class is not thread safe, it is guarded by {@link PoolableWorkerThreadPool} lock.
+ *
+ * @param <U> - result type of work
+ */
+class RequestKeyGroup<U> {
+
+  private final String name;
+  private final int maxLeases;
+  private final int queueCapacity;
+  /*
+   * Request keys mapped to worker threads, or about to be
+   */
+  private final Set<String> leasedRequestKeys = new HashSet<>();
+  /*
+   * Request keys waiting for a lease, in order they started waiting
+   */
+  private final Map<String, RequestKeyBacklog<U>> pendingRequestKeys = new LinkedHashMap<>();
+  private int pendingRequestCount;
+
+  RequestKeyGroup(final String name, final int maxLeases, final int queueCapacity) {
+    this.name = name;
+    this.maxLeases = maxLeases;
+    this.queueCapacity = queueCapacity;
+  }
+
+  String getName() {
+    return name;
+  }
+
+  /**
+   * @return - true if request key holds a lease now, either it already did or one is available
+   */
+  boolean tryLease(String requestKey) {
+    if (leasedRequestKeys.contains(requestKey)) {
+      return true;
+    }
+    if (leasedRequestKeys.size() >= maxLeases) {
+      return false;
+    }
+    leasedRequestKeys.add(requestKey);
+    return true;
+  }
+
+  /**
+   * @return - true if request key held a lease
+   */
+  boolean release(String requestKey) {
+    return leasedRequestKeys.remove(requestKey);
+  }
+
+  boolean isPending(String requestKey) {
+    return pendingRequestKeys.containsKey(requestKey);
+  }
+
+  /**
+   * Make request key wait for a lease, along with its pending requests, which are already accepted.
+   */
+  void addPending(RequestKeyBacklog<U> requestKeyBacklog) {
+    pendingRequestKeys.put(requestKeyBacklog.getRequestKey(), requestKeyBacklog);
+    pendingRequestCount += requestKeyBacklog.getRequestCount();
+  }
+
+  /**
+   * Count a new request of request key, which starts waiting for a lease if it is not already. Request
+   * is then added into backlog by caller. Barriers are never rejected, as they only mark requests
+   * already accepted.
+   *
+   * @throws AsyncRequestSerializerException - if pending queue of group is full
+   */
+  void addPending(RequestKeyBacklog<U> requestKeyBacklog, boolean barrier) {
+    if (!barrier && pendingRequestCount >= queueCapacity) {
+      throw new AsyncRequestSerializerException("Pending queue of request key group " + name + " is full");
+    }
+    pendingRequestKeys.putIfAbsent(requestKeyBacklog.getRequestKey(), requestKeyBacklog);
+    pendingRequestCount++;
+  }
+
+  /**
+   * Take first pending request key, if a lease is available, which it then holds.
+   *
+   * @return - null if no request key is pending or no lease is available
+   */
+  RequestKeyBacklog<U> pollPending() {
+    if (pendingRequestKeys.isEmpty() || leasedRequestKeys.size() >= maxLeases) {
+      return null;
+    }
+    Iterator<RequestKeyBacklog<U>> iterator = pendingRequestKeys.values().iterator();
+    RequestKeyBacklog<U> requestKeyBacklog = iterator.next();
+    iterator.remove();
+    pendingRequestCount -= requestKeyBacklog.getRequestCount();
+    leasedRequestKeys.add(requestKeyBacklog.getRequestKey());
+    return requestKeyBacklog;
+  }
+
+  int getLeaseCount() {
+    return leasedRequestKeys.size();
+  }
+
+  boolean isIdle() {
+    return leasedRequestKeys.isEmpty() && pendingRequestKeys.isEmpty();
+  }
+}
@@ -0,0 +1,115 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Function;
+
+/**
+ * Policy to limit active request keys of a group (e.g. tenant of request keys "tenant/user"), i.e.
+ * request keys mapped to worker threads at once, so that one large group does not starve others.
+ * <p>
+ * A request key of a group holding its maximum number of leases (active request keys) waits in a
+ * pending queue of its group, till some request key of group gives up its worker thread. Requests
+ * submitted beyond queue capacity of group are rejected.
+ * <p>
+ * Limit counts request keys, not worker threads. Without worker thread sharing every active request
+ * key holds a worker thread of its own, so both are same. With sharing, a group never occupies more
+ * worker threads than its limit, however its request keys sharing a worker thread take a lease each.
+ */
+public class RequestKeyGroupPolicy {
+  final Function<String, String> groupFunction;
+  private final int maxActiveRequestKeys;
+  private final Map<String, Integer> maxActiveRequestKeysByGroup;
+  private final int queueCapacity;
+  private final Map<String, Integer> queueCapacityByGroup;
+
+  private RequestKeyGroupPolicy(Builder builder) {
+    this.groupFunction = builder.groupFunction;
+    this.maxActiveRequestKeys = builder.maxActiveRequestKeys;
+    this.maxActiveRequestKeysByGroup = Collections.unmodifiableMap(new HashMap<>(builder.maxActiveRequestKeysByGroup));
+    this.queueCapacity = builder.queueCapacity;
+    this.queueCapacityByGroup = Collections.unmodifiableMap(new HashMap<>(builder.queueCapacityByGroup));
+  }
+
+  int getMaxActiveRequestKeys(String group) {
+    return maxActiveRequestKeysByGroup.getOrDefault(group, maxActiveRequestKeys);
+  }
+
+  int getQueueCapacity(String group) {
+    return queueCapacityByGroup.getOrDefault(group, queueCapacity);
+  }
+
+  public static class Builder {
+    private Function<String, String> groupFunction;
+    private int maxActiveRequestKeys = Integer.MAX_VALUE;
+    private final Map<String, Integer> maxActiveRequestKeysByGroup = new HashMap<>();
+    private int queueCapacity = Integer.MAX_VALUE;
+    private final Map<String, Integer> queueCapacityByGroup = new HashMap<>();
+
+    /**
+     * Function mapping request key to its group (Should not be null).
+     */
+    public Builder setGroupFunction(Function<String, String> groupFunction) {
+      this.groupFunction = groupFunction;
+      return this;
+    }
+
+    /**
+     * Maximum number of request keys of a group mapped to worker threads at once, unlimited by
+     * default.
+     */
+    public Builder setMaxActiveRequestKeys(int maxActiveRequestKeys) {
+      this.maxActiveRequestKeys = maxActiveRequestKeys;
+      return this;
+    }
+
+    /**
+     * Maximum number of request keys of given group mapped to worker threads at once.
+     */
+    public Builder setMaxActiveRequestKeys(String group, int maxActiveRequestKeys) {
+      this.maxActiveRequestKeysByGroup.put(group, maxActiveRequestKeys);
+      return this;
+    }
+
+    /**
+     * Maximum number of requests of a group waiting in its pending queue, unlimited by default.
+     */
+    public Builder setQueueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    /**
+     * Maximum number of requests of given group waiting in its pending queue.
+     */
+    public Builder setQueueCapacity(String group, int queueCapacity) {
+      this.queueCapacityByGroup.put(group, queueCapacity);
+      return this;
+    }
+
+    public RequestKeyGroupPolicy build() {
+      Objects.requireNonNull(groupFunction, "Group function is mandatory field");
+      if (maxActiveRequestKeys < 1 || maxActiveRequestKeysByGroup.values().stream().anyMatch(limit -> limit < 1)) {
+        throw new IllegalArgumentException("Maximum active request keys of a group should be positive");
+      }
+      return new RequestKeyGroupPolicy(this);
+    }
+  }
+}
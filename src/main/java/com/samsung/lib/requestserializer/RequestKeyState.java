@@ -0,0 +1,36 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * Handle to state of a request key, see {@link StatefulWork}.
+ * <p>
+ * This handle is not thread safe, and it need not be. As requests of same request key are
+ * processed serially, it is accessed by one work at a time.
+ *
+ * @param <S> - type of state
+ */
+public interface RequestKeyState<S> {
+
+  /**
+   * @return - current state, null if not set or evicted
+   */
+  S get();
+
+  void set(S state);
+
+  void clear();
+}
@@ -0,0 +1,160 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Store of request key states, bounded by size in approximately least recently used order and
+ * optionally by time since last access.
+ * <p>
+ * Lookup of a state is a plain read of a concurrent map, the state itself is accessed without
+ * synchronization, since requests of same request key are processed serially. A state not accessed
+ * within expiry is started afresh on its next lookup. Only when a new state makes store exceed its
+ * size, states are evicted, least recently accessed of a few sampled ones at a time, expired ones
+ * first. State of an active request key (i.e. mapped to a worker thread or having pending requests)
+ * is never evicted, so store may exceed its size while all sampled request keys are active.
+ * <p>
+ * State is volatile, as an {@link AsyncWork} may complete on another thread than the one running
+ * next request of its request key.
+ */
+class RequestKeyStateStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestKeyStateStore.class);
+
+  private static final int EVICTION_SAMPLE_SIZE = 8;
+
+  private final int maxSize;
+  private final long expiry;
+  private final Map<String, StateEntry> stateMap = new ConcurrentHashMap<>();
+  /*
+   * Tells if a request key is active, so its state is not to be evicted
+   */
+  private final Predicate<String> activeRequestKeys;
+
+  /*
+   * Held by one evicting thread at a time, others skip eviction
+   */
+  private final ReentrantLock evictionLock = new ReentrantLock();
+  /*
+   * Resumes sampling where last eviction stopped, guarded by eviction lock
+   */
+  private Iterator<Map.Entry<String, StateEntry>> evictionCursor;
+
+  /**
+   * @param activeRequestKeys - true for a request key mapped to a worker thread or having pending
+   *        requests, called without any lock held
+   */
+  RequestKeyStateStore(final AsyncRequestSerializerConfig asyncRequestSerializerConfig,
+      final Predicate<String> activeRequestKeys) {
+    this.maxSize = asyncRequestSerializerConfig.requestKeyStateMaxSize;
+    this.expiry = asyncRequestSerializerConfig.requestKeyStateExpiry;
+    this.activeRequestKeys = activeRequestKeys;
+  }
+
+  RequestKeyState<Object> getRequestKeyState(final String requestKey) {
+    long now = System.currentTimeMillis();
+    StateEntry stateEntry = stateMap.get(requestKey);
+    if (stateEntry != null) {
+      if (isExpired(stateEntry, now)) {
+        LOGGER.trace("State of request key {} expired, starting afresh", requestKey);
+        stateEntry.state = null;
+      }
+      stateEntry.lastAccessTime = now;
+      return stateEntry;
+    }
+    stateEntry = stateMap.computeIfAbsent(requestKey, key -> new StateEntry());
+    stateEntry.lastAccessTime = now;
+    if (stateMap.size() > maxSize) {
+      evict(now);
+    }
+    return stateEntry;
+  }
+
+  int size() {
+    return stateMap.size();
+  }
+
+  private boolean isExpired(StateEntry stateEntry, long now) {
+    return expiry > 0 && now - stateEntry.lastAccessTime >= expiry;
+  }
+
+  private void evict(long now) {
+    if (!evictionLock.tryLock()) {
+      return;
+    }
+    try {
+      while (stateMap.size() > maxSize) {
+        Map.Entry<String, StateEntry> victim = null;
+        for (int sampled = 0; sampled < EVICTION_SAMPLE_SIZE; sampled++) {
+          if (evictionCursor == null || !evictionCursor.hasNext()) {
+            evictionCursor = stateMap.entrySet().iterator();
+            if (!evictionCursor.hasNext()) {
+              break;
+            }
+          }
+          Map.Entry<String, StateEntry> candidate = evictionCursor.next();
+          if (activeRequestKeys.test(candidate.getKey())) {
+            continue;
+          }
+          if (isExpired(candidate.getValue(), now)) {
+            victim = candidate;
+            break;
+          }
+          if (victim == null || candidate.getValue().lastAccessTime < victim.getValue().lastAccessTime) {
+            victim = candidate;
+          }
+        }
+        if (victim == null) {
+          LOGGER.trace("Sampled request keys are active, store holds {} states for now", stateMap.size());
+          return;
+        }
+        stateMap.remove(victim.getKey(), victim.getValue());
+        LOGGER.trace("Evicted state of request key {}", victim.getKey());
+      }
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  private static final class StateEntry implements RequestKeyState<Object> {
+
+    private volatile Object state;
+    private volatile long lastAccessTime;
+
+    @Override
+    public Object get() {
+      return state;
+    }
+
+    @Override
+    public void set(Object state) {
+      this.state = state;
+    }
+
+    @Override
+    public void clear() {
+      this.state = null;
+    }
+  }
+}
@@ -0,0 +1,349 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A {@link FutureTask} wrapping submitted {@link Work} along with request key it belongs to.
+ * <p>
+ * In case of {@link AsyncWork}, {@link #run()} only starts the work, and this task completes
+ * when {@link CompletionStage} returned by work completes. A {@link StatefulWork} is called with
+ * state of its request key, looked up when it runs.
+ * <p>
+ * If an attempt fails and {@link RetryPolicy} allows retrying it, this task is not completed, instead
+ * it is settled with a retry delay, and can be run again.
+ * <p>
+ * A task may run a request taken out of {@link SpilledRequests}, its work is then read back from
+ * {@link SpillStore} when it runs, and its outcome is passed to future of spilled request. So a spilled
+ * work runs as a deserialized copy, and objects it refers to are copies as well.
+ *
+ * @param <U> - result type of work
+ */
+class RequestTask<U> extends FutureTask<U> implements RequestFuture<U> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(RequestTask.class);
+
+  private final String requestKey;
+  private final SpillableCallable<U> callable;
+  private final boolean barrier;
+  private final boolean poison;
+  /*
+   * Future of spilled request run by this task, null if request was not spilled
+   */
+  private final SpilledRequests.SpilledRequest<U> spilledRequest;
+  private final RetryPolicy retryPolicy;
+  private final DeadLetterSink deadLetterSink;
+  /*
+   * First action to run once done, further ones are listed, as most tasks have only one
+   */
+  private Runnable doneAction;
+  private List<Runnable> doneActions;
+
+  private int attempt = 1;
+  /*
+   * Time in ms. to wait before running again, -1 unless last attempt failed and is to be retried
+   */
+  private long retryDelay = -1;
+  /*
+   * Last attempt is over, i.e. task is done or to be retried
+   */
+  private boolean settled;
+  private Runnable settleAction;
+
+  /**
+   * @param retryPolicy - null if failed request is not to be retried
+   * @param deadLetterSink - null if permanently failed request is not to be reported
+   */
+  RequestTask(final String requestKey, final Work<U> request, final RequestKeyStateStore requestKeyStateStore,
+      final RetryPolicy retryPolicy, final DeadLetterSink deadLetterSink) {
+    this(requestKey, new SpillableCallable<>(requestKey, request, null, -1, requestKeyStateStore), null,
+        retryPolicy, deadLetterSink, request instanceof BarrierWork, request instanceof PoisonWork);
+  }
+
+  /**
+   * Task running a spilled request, whose work is read back from given record of spill store.
+   */
+  RequestTask(final String requestKey, final SpillStore spillStore, final long spillRecord,
+      final SpilledRequests.SpilledRequest<U> spilledRequest, final RequestKeyStateStore requestKeyStateStore,
+      final RetryPolicy retryPolicy, final DeadLetterSink deadLetterSink) {
+    this(requestKey, new SpillableCallable<>(requestKey, null, spillStore, spillRecord, requestKeyStateStore),
+        spilledRequest, retryPolicy, deadLetterSink, false, false);
+  }
+
+  /**
+   * Task queued in place of requests it holds, which is never run itself, see {@link SpilledRequests}.
+   */
+  RequestTask(final String requestKey) {
+    this(requestKey, new SpillableCallable<>(requestKey, null, null, -1, null), null, null, null, false, false);
+  }
+
+  private RequestTask(final String requestKey, final SpillableCallable<U> callable,
+      final SpilledRequests.SpilledRequest<U> spilledRequest, final RetryPolicy retryPolicy,
+      final DeadLetterSink deadLetterSink, final boolean barrier, final boolean poison) {
+    super(callable);
+    this.requestKey = requestKey;
+    this.callable = callable;
+    this.spilledRequest = spilledRequest;
+    this.retryPolicy = retryPolicy;
+    this.deadLetterSink = deadLetterSink;
+    this.barrier = barrier;
+    this.poison = poison;
+  }
+
+  String getRequestKey() {
+    return requestKey;
+  }
+
+  /**
+   * @return - true if work is a {@link BarrierWork}
+   */
+  boolean isBarrier() {
+    return barrier;
+  }
+
+  /**
+   * @return - true if work is a {@link PoisonWork}
+   */
+  boolean isPoison() {
+    return poison;
+  }
+
+  /**
+   * @return - number of requests held by this task, see {@link SpilledRequests}
+   */
+  int getRequestCount() {
+    return 1;
+  }
+
+  @Override
+  public void run() {
+    synchronized (this) {
+      settled = false;
+      retryDelay = -1;
+    }
+    if (isDone()) {
+      return;
+    }
+    if (spilledRequest != null && spilledRequest.isCancelled()) {
+      // e.g. cancelled while waiting for its retry backoff
+      cancel(false);
+      return;
+    }
+    Work<U> request;
+    try {
+      request = callable.getRequest();
+    } catch (Exception exception) {
+      setException(exception);
+      return;
+    }
+    if (!(request instanceof AsyncWork)) {
+      super.run();
+      return;
+    }
+    CompletionStage<U> stage;
+    try {
+      stage = ((AsyncWork<U>) request).callAsync();
+    } catch (Throwable throwable) {
+      setException(throwable);
+      return;
+    }
+    if (stage == null) {
+      setException(new AsyncRequestSerializerException("AsyncWork returned null CompletionStage"));
+      return;
+    }
+    stage.whenComplete((result, failure) -> {
+      if (failure == null) {
+        set(result);
+      } else if (failure instanceof CompletionException && failure.getCause() != null) {
+        setException(failure.getCause());
+      } else {
+        setException(failure);
+      }
+    });
+  }
+
+  @Override
+  protected void setException(Throwable failure) {
+    if (retryPolicy != null && retryPolicy.shouldRetry(attempt, failure)) {
+      long delay = retryPolicy.getBackoff(attempt);
+      LOGGER.warn("Attempt {} of request of request-key {} failed, will retry in {} ms. ({})", attempt, requestKey,
+          delay, failure.toString());
+      attempt++;
+      synchronized (this) {
+        retryDelay = delay;
+      }
+      settle();
+      return;
+    }
+    if (deadLetterSink != null) {
+      try {
+        deadLetterSink.accept(requestKey, callable.getRequest(), failure);
+      } catch (Exception exception) {
+        LOGGER.error("Error while reporting failed request of request-key " + requestKey, exception);
+      }
+    }
+    super.setException(failure);
+  }
+
+  synchronized boolean isRetryPending() {
+    return retryDelay >= 0;
+  }
+
+  synchronized long getRetryDelay() {
+    return retryDelay;
+  }
+
+  /**
+   * Run given action once last attempt is over (task is done or to be retried), immediately if it is
+   * already over. Only one action can be registered per attempt.
+   */
+  void whenSettled(final Runnable action) {
+    synchronized (this) {
+      if (!settled) {
+        settleAction = action;
+        return;
+      }
+    }
+    action.run();
+  }
+
+  private void settle() {
+    Runnable action;
+    synchronized (this) {
+      settled = true;
+      action = settleAction;
+      settleAction = null;
+    }
+    if (action != null) {
+      action.run();
+    }
+  }
+
+  @Override
+  public void whenDone(final Runnable action) {
+    synchronized (this) {
+      if (!isDone()) {
+        if (doneAction == null) {
+          doneAction = action;
+          return;
+        }
+        if (doneActions == null) {
+          doneActions = new ArrayList<>(1);
+        }
+        doneActions.add(action);
+        return;
+      }
+    }
+    action.run();
+  }
+
+  @Override
+  protected void done() {
+    // e.g. cancelled while still spilled
+    callable.discard();
+    settle();
+    Runnable firstAction;
+    List<Runnable> actions;
+    synchronized (this) {
+      firstAction = doneAction;
+      actions = doneActions;
+      doneAction = null;
+      doneActions = null;
+    }
+    if (firstAction != null) {
+      firstAction.run();
+    }
+    if (actions != null) {
+      for (Runnable action : actions) {
+        action.run();
+      }
+    }
+    if (spilledRequest != null) {
+      spilledRequest.complete(this);
+    }
+  }
+
+  /**
+   * Calls work, which may be held in spill store till then.
+   */
+  private static final class SpillableCallable<U> implements Callable<U> {
+    private final String requestKey;
+    private final RequestKeyStateStore requestKeyStateStore;
+    private final SpillStore spillStore;
+    private Work<U> request;
+    /*
+     * Handle of record in spill store, -1 if work is not spilled or already read back
+     */
+    private long spillRecord;
+
+    /**
+     * @param request - null if work is spilled in given record of spill store
+     */
+    SpillableCallable(final String requestKey, final Work<U> request, final SpillStore spillStore,
+        final long spillRecord, final RequestKeyStateStore requestKeyStateStore) {
+      this.requestKey = requestKey;
+      this.request = request;
+      this.spillStore = spillStore;
+      this.spillRecord = spillRecord;
+      this.requestKeyStateStore = requestKeyStateStore;
+    }
+
+    @SuppressWarnings("unchecked")
+    synchronized Work<U> getRequest() throws IOException, ClassNotFoundException {
+      if (spillRecord >= 0) {
+        byte[] data = spillStore.read(spillRecord);
+        spillRecord = -1;
+        try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(data))) {
+          request = (Work<U>) objectInputStream.readObject();
+        }
+      }
+      if (request == null) {
+        throw new AsyncRequestSerializerException("Spilled work of request-key " + requestKey + " is lost");
+      }
+      return request;
+    }
+
+    synchronized void discard() {
+      if (spillRecord >= 0) {
+        spillStore.discard(spillRecord);
+        spillRecord = -1;
+      }
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public U call() throws Exception {
+      Work<U> work = getRequest();
+      if (work instanceof StatefulWork) {
+        StatefulWork<U, Object> statefulWork = (StatefulWork<U, Object>) work;
+        return statefulWork.call(requestKeyStateStore.getRequestKeyState(requestKey));
+      }
+      return work.call();
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Bounded LRU cache of results of {@link CacheableWork}, per request key.
+ * <p>
+ * Writes are ordered against reads by sequence numbers taken at submit time. Every write of a request
+ * key records a new sequence as its invalidation sequence, and a cached result is valid only if taken
+ * by a read submitted after that. So invalidation is O(1), stale results are dropped once looked up
+ * or evicted. Invalidation sequences are kept for a bounded number of request keys, once one is
+ * evicted, it raises a watermark which is taken as invalidation sequence of every request key not
+ * tracked.
+ */
+class ResultCache<T> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+  private final int maxSize;
+
+  private final Map<Key, Entry<T>> entries;
+  private final Map<String, Long> invalidationSequences;
+  private long sequence;
+  private long evictionWatermark;
+
+  private long hitCount;
+  private long missCount;
+
+  ResultCache(final int maxSize) {
+    this.maxSize = maxSize;
+    this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    this.invalidationSequences = new LinkedHashMap<>(16, 0.75f, true);
+  }
+
+  /**
+   * Invalidate cached results of request key, to be called when its write is submitted.
+   */
+  synchronized void invalidate(final String requestKey) {
+    invalidationSequences.put(requestKey, ++sequence);
+    if (invalidationSequences.size() > maxSize) {
+      Iterator<Map.Entry<String, Long>> iterator = invalidationSequences.entrySet().iterator();
+      evictionWatermark = Math.max(evictionWatermark, iterator.next().getValue());
+      iterator.remove();
+    }
+  }
+
+  /**
+   * @return - current sequence, to be taken when a read is submitted
+   */
+  synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * @return - cached result of read, null if none is valid
+   */
+  synchronized Entry<T> get(final String requestKey, final Object cacheKey) {
+    Key key = new Key(requestKey, cacheKey);
+    Entry<T> entry = entries.get(key);
+    if (entry != null && !isValid(requestKey, entry.sequence)) {
+      entries.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      missCount++;
+      return null;
+    }
+    hitCount++;
+    return entry;
+  }
+
+  /**
+   * Cache result of read submitted at given sequence, unless a write of request key is submitted
+   * since then.
+   */
+  synchronized void put(final String requestKey, final Object cacheKey, final long readSequence, final T result) {
+    if (!isValid(requestKey, readSequence)) {
+      LOGGER.debug("Result of request-key {} is invalidated by a later write, not caching it", requestKey);
+      return;
+    }
+    entries.put(new Key(requestKey, cacheKey), new Entry<>(readSequence, result));
+    if (entries.size() > maxSize) {
+      Iterator<Entry<T>> iterator = entries.values().iterator();
+      iterator.next();
+      iterator.remove();
+    }
+  }
+
+  private boolean isValid(final String requestKey, final long readSequence) {
+    return readSequence >= invalidationSequences.getOrDefault(requestKey, evictionWatermark);
+  }
+
+  synchronized long getHitCount() {
+    return hitCount;
+  }
+
+  synchronized long getMissCount() {
+    return missCount;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  static final class Entry<T> {
+    private final long sequence;
+    private final T result;
+
+    private Entry(final long sequence, final T result) {
+      this.sequence = sequence;
+      this.result = result;
+    }
+
+    T getResult() {
+      return result;
+    }
+  }
+
+  private static final class Key {
+    private final String requestKey;
+    private final Object cacheKey;
+
+    private Key(final String requestKey, final Object cacheKey) {
+      this.requestKey = requestKey;
+      this.cacheKey = cacheKey;
+    }
+
+    @Override
+    public boolean equals(final Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key key = (Key) other;
+      return requestKey.equals(key.requestKey) && Objects.equals(cacheKey, key.cacheKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * requestKey.hashCode() + Objects.hashCode(cacheKey);
+    }
+  }
+}
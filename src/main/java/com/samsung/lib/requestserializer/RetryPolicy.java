@@ -0,0 +1,120 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Policy to retry a failed work, with exponential backoff and jitter.
+ * <p>
+ * While a failed work waits for its backoff, its request key stays blocked (later requests of same
+ * request key are held back), however worker thread is released to serve other request keys.
+ */
+public class RetryPolicy {
+  final int maxAttempts;
+  final long initialBackoff;
+  final long maxBackoff;
+  final double multiplier;
+  final double jitter;
+  final Predicate<Throwable> retryable;
+
+  private RetryPolicy(Builder builder) {
+    this.maxAttempts = builder.maxAttempts;
+    this.initialBackoff = builder.initialBackoff;
+    this.maxBackoff = builder.maxBackoff;
+    this.multiplier = builder.multiplier;
+    this.jitter = builder.jitter;
+    this.retryable = builder.retryable;
+  }
+
+  /**
+   * @return - true if work which failed given attempt, by given failure, should be retried
+   */
+  boolean shouldRetry(int attempt, Throwable failure) {
+    return attempt < maxAttempts && retryable.test(failure);
+  }
+
+  /**
+   * @return - time in ms. to wait before next attempt, after given failed attempt
+   */
+  long getBackoff(int attempt) {
+    double backoff = Math.min(initialBackoff * Math.pow(multiplier, attempt - 1), maxBackoff);
+    double spread = backoff * jitter;
+    return Math.round(backoff - spread + ThreadLocalRandom.current().nextDouble() * 2 * spread);
+  }
+
+  public static class Builder {
+    private int maxAttempts = 3;
+    private long initialBackoff = 100;
+    private long maxBackoff = 10000;
+    private double multiplier = 2;
+    private double jitter = 0.2;
+    private Predicate<Throwable> retryable = failure -> failure instanceof Exception;
+
+    /**
+     * Maximum number of attempts, including the first one.
+     */
+    public Builder setMaxAttempts(int maxAttempts) {
+      this.maxAttempts = maxAttempts;
+      return this;
+    }
+
+    /**
+     * Time in ms. to wait after first failed attempt.
+     */
+    public Builder setInitialBackoff(long initialBackoff) {
+      this.initialBackoff = initialBackoff;
+      return this;
+    }
+
+    /**
+     * Maximum time in ms. to wait between attempts.
+     */
+    public Builder setMaxBackoff(long maxBackoff) {
+      this.maxBackoff = maxBackoff;
+      return this;
+    }
+
+    /**
+     * Factor by which backoff grows after every failed attempt.
+     */
+    public Builder setMultiplier(double multiplier) {
+      this.multiplier = multiplier;
+      return this;
+    }
+
+    /**
+     * Fraction (0 to 1) by which backoff is randomly varied, either way.
+     */
+    public Builder setJitter(double jitter) {
+      this.jitter = jitter;
+      return this;
+    }
+
+    /**
+     * Predicate telling if a failure is worth retrying, by default every {@link Exception} is.
+     */
+    public Builder setRetryable(Predicate<Throwable> retryable) {
+      this.retryable = retryable;
+      return this;
+    }
+
+    public RetryPolicy build() {
+      return new RetryPolicy(this);
+    }
+  }
+}
@@ -0,0 +1,287 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Overflow tier for serialized works of large backlogs. Records are appended to memory mapped
+ * segment files, each read back (or discarded) once. A segment keeps count of its live records, and
+ * once it is full and all of them are gone, it is recycled for new records, or deleted if enough
+ * segments are already spare. A deleted segment is unmapped right away where JVM allows it, so that
+ * its disk space is freed without waiting for garbage collection.
+ * <p>
+ * A record is referred to by a plain long handle (segment id and position). Its length, and handle of
+ * record following it in a run of {@link SpilledRequests}, are kept in segment in front of its data,
+ * so that nothing is kept on heap per record.
+ * <p>
+ * This class is thread safe. A pool has as many instances as worker threads, request keys are striped
+ * over them, so that spilling of different request keys mostly does not contend.
+ */
+class SpillStore {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpillStore.class);
+
+  private static final int MAX_SPARE_SEGMENTS = 2;
+  /*
+   * Length of data and handle of next record
+   */
+  private static final int RECORD_HEADER_SIZE = Integer.BYTES + Long.BYTES;
+
+  /*
+   * null if mapped buffers can not be unmapped on this JVM, they are then unmapped once garbage collected
+   */
+  private static final Unmapper UNMAPPER = newUnmapper();
+
+  private final Path directory;
+  private final int segmentSize;
+  private final Deque<Segment> spareSegments = new ArrayDeque<>();
+  private final Map<Integer, Segment> segments = new HashMap<>();
+  private Segment currentSegment;
+  private int segmentCount;
+  private long liveRecordCount;
+
+  SpillStore(final Path directory, final int segmentSize) {
+    this.directory = directory;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * Append given data in current segment, starting a new segment if it does not fit.
+   *
+   * @return - handle of record
+   */
+  synchronized long append(byte[] data) throws IOException {
+    int recordSize = RECORD_HEADER_SIZE + data.length;
+    if (currentSegment == null || currentSegment.buffer.capacity() - currentSegment.writePosition < recordSize) {
+      if (currentSegment != null) {
+        currentSegment.sealed = true;
+        recycleIfDrained(currentSegment);
+      }
+      currentSegment = nextSegment(recordSize);
+    }
+    Segment segment = currentSegment;
+    ByteBuffer buffer = segment.buffer.duplicate();
+    buffer.position(segment.writePosition);
+    buffer.putInt(data.length);
+    buffer.putLong(-1);
+    buffer.put(data);
+    long spillRecord = ((long) segment.id << 32) | segment.writePosition;
+    segment.writePosition += recordSize;
+    segment.liveRecordCount++;
+    liveRecordCount++;
+    return spillRecord;
+  }
+
+  /**
+   * Make given record follow given live record.
+   */
+  synchronized void link(long spillRecord, long nextSpillRecord) {
+    Segment segment = getSegment(spillRecord);
+    segment.buffer.putLong((int) spillRecord + Integer.BYTES, nextSpillRecord);
+  }
+
+  /**
+   * @return - handle of record following given live record, -1 if none is linked
+   */
+  synchronized long next(long spillRecord) {
+    Segment segment = getSegment(spillRecord);
+    return segment.buffer.getLong((int) spillRecord + Integer.BYTES);
+  }
+
+  /**
+   * Read back data of given record, which is then gone.
+   */
+  synchronized byte[] read(long spillRecord) {
+    ByteBuffer buffer = getSegment(spillRecord).buffer.duplicate();
+    buffer.position((int) spillRecord);
+    byte[] data = new byte[buffer.getInt()];
+    buffer.position((int) spillRecord + RECORD_HEADER_SIZE);
+    buffer.get(data);
+    discard(spillRecord);
+    return data;
+  }
+
+  /**
+   * Forget given record without reading it back, e.g. its request is cancelled.
+   */
+  synchronized void discard(long spillRecord) {
+    Segment segment = segments.get((int) (spillRecord >>> 32));
+    if (segment == null) {
+      // store is closed
+      return;
+    }
+    segment.liveRecordCount--;
+    liveRecordCount--;
+    recycleIfDrained(segment);
+  }
+
+  /**
+   * @return - number of records not yet read back or discarded
+   */
+  synchronized long size() {
+    return liveRecordCount;
+  }
+
+  /**
+   * Delete all segment files, records not yet read back are lost.
+   */
+  synchronized void close() {
+    for (Segment segment : new ArrayList<>(segments.values())) {
+      delete(segment);
+    }
+    currentSegment = null;
+    spareSegments.clear();
+    liveRecordCount = 0;
+  }
+
+  private Segment getSegment(long spillRecord) {
+    Segment segment = segments.get((int) (spillRecord >>> 32));
+    if (segment == null) {
+      throw new AsyncRequestSerializerException("Spill record is gone, spill store is closed");
+    }
+    return segment;
+  }
+
+  private Segment nextSegment(int minSize) throws IOException {
+    Segment segment = spareSegments.poll();
+    if (segment != null && segment.buffer.capacity() >= minSize) {
+      LOGGER.debug("Reusing spill segment {}", segment.path);
+      return segment;
+    }
+    if (segment != null) {
+      delete(segment);
+    }
+    int id = segmentCount++;
+    Path path = directory.resolve("spill-" + System.identityHashCode(this) + "-" + id + ".seg");
+    int size = Math.max(segmentSize, minSize);
+    LOGGER.debug("Creating spill segment {} of {} bytes", path, size);
+    try (FileChannel fileChannel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+      // mapping stays valid after channel is closed
+      segment = new Segment(id, path, fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+    }
+    segments.put(id, segment);
+    return segment;
+  }
+
+  private void recycleIfDrained(Segment segment) {
+    if (!segment.sealed || segment.liveRecordCount > 0) {
+      return;
+    }
+    segment.sealed = false;
+    segment.writePosition = 0;
+    if (spareSegments.size() < MAX_SPARE_SEGMENTS) {
+      LOGGER.debug("Spill segment {} is drained, keeping it for reuse", segment.path);
+      spareSegments.add(segment);
+    } else {
+      delete(segment);
+    }
+  }
+
+  /*
+   * Segment is no longer reachable through a handle once removed, so it is never touched after unmapping
+   */
+  private void delete(Segment segment) {
+    LOGGER.debug("Deleting spill segment {}", segment.path);
+    segments.remove(segment.id);
+    unmap(segment);
+    try {
+      Files.deleteIfExists(segment.path);
+    } catch (IOException ioException) {
+      LOGGER.warn("Error while deleting spill segment " + segment.path, ioException);
+    }
+  }
+
+  private static void unmap(Segment segment) {
+    if (UNMAPPER == null) {
+      return;
+    }
+    try {
+      UNMAPPER.unmap(segment.buffer);
+    } catch (Exception exception) {
+      LOGGER.debug("Spill segment {} could not be unmapped, it is unmapped once garbage collected ({})",
+          segment.path, exception.toString());
+    }
+  }
+
+  private static Unmapper newUnmapper() {
+    try {
+      // Java 9 and later
+      Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+      Field unsafeField = unsafeClass.getDeclaredField("theUnsafe");
+      unsafeField.setAccessible(true);
+      Object unsafe = unsafeField.get(null);
+      Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+      return buffer -> invokeCleaner.invoke(unsafe, buffer);
+    } catch (ReflectiveOperationException | RuntimeException exception) {
+      LOGGER.trace("Unsafe.invokeCleaner is not available ({})", exception.toString());
+    }
+    try {
+      // Java 8
+      Method cleanerMethod = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+      Method cleanMethod = Class.forName("sun.misc.Cleaner").getMethod("clean");
+      return buffer -> {
+        Object cleaner = cleanerMethod.invoke(buffer);
+        if (cleaner != null) {
+          cleanMethod.invoke(cleaner);
+        }
+      };
+    } catch (ReflectiveOperationException | RuntimeException exception) {
+      LOGGER.debug("Spill segments can not be unmapped on this JVM, they are unmapped once garbage collected ({})",
+          exception.toString());
+      return null;
+    }
+  }
+
+  private interface Unmapper {
+    void unmap(ByteBuffer buffer) throws Exception;
+  }
+
+  private static final class Segment {
+    private final int id;
+    private final Path path;
+    private final MappedByteBuffer buffer;
+    private int writePosition;
+    private int liveRecordCount;
+    /*
+     * No more records are appended, as current segment has moved on
+     */
+    private boolean sealed;
+
+    Segment(int id, Path path, MappedByteBuffer buffer) {
+      this.id = id;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+}
@@ -0,0 +1,332 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A run of requests of a request key, whose works are spilled into {@link SpillStore}. It is queued as
+ * one task in place of its requests and is never run itself, instead requests are taken out of it one
+ * at a time (see {@link #poll()}), and work of each is read back when it is about to run.
+ * <p>
+ * Records of a run are linked in spill store, so only handles of first and last one are kept on heap.
+ * Outcomes of requests are kept in chunks of slots, and future of a request (see
+ * {@link SpilledRequest}) only refers to its slot. So a spilled request costs a few bytes of heap,
+ * besides its future while submitter holds it, and actions registered on it.
+ * <p>
+ * This class is not thread safe, it is guarded by lock of worker thread queue or backlog holding it.
+ *
+ * @param <U> - result type of work
+ */
+class SpilledRequests<U> extends RequestTask<U> {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(SpilledRequests.class);
+
+  private static final int CHUNK_SIZE = 64;
+  private static final Object CANCELLED = new Object();
+  private static final Object NULL_RESULT = new Object();
+
+  private final SpillStore spillStore;
+  private final RequestKeyStateStore requestKeyStateStore;
+  private final RetryPolicy retryPolicy;
+  private final DeadLetterSink deadLetterSink;
+  /*
+   * Chunks having slots of requests not yet taken out
+   */
+  private final Deque<Chunk> chunks = new ArrayDeque<>();
+  /*
+   * Slot of first request in first chunk, and of next added request in last chunk
+   */
+  private int headSlot;
+  private int tailSlot = CHUNK_SIZE;
+  /*
+   * Handles of records of first and last request, -1 if none is left
+   */
+  private long headRecord = -1;
+  private long tailRecord = -1;
+  private int size;
+
+  /**
+   * @param retryPolicy - null if failed request is not to be retried
+   * @param deadLetterSink - null if permanently failed request is not to be reported
+   */
+  SpilledRequests(final String requestKey, final SpillStore spillStore,
+      final RequestKeyStateStore requestKeyStateStore, final RetryPolicy retryPolicy,
+      final DeadLetterSink deadLetterSink) {
+    super(requestKey);
+    this.spillStore = spillStore;
+    this.requestKeyStateStore = requestKeyStateStore;
+    this.retryPolicy = retryPolicy;
+    this.deadLetterSink = deadLetterSink;
+  }
+
+  @Override
+  int getRequestCount() {
+    return size;
+  }
+
+  boolean isEmpty() {
+    return size == 0;
+  }
+
+  /**
+   * Add a request, whose work is spilled in given record of spill store, at tail of this run.
+   *
+   * @return - future of request
+   */
+  RequestFuture<U> add(final long spillRecord) {
+    if (tailRecord >= 0) {
+      spillStore.link(tailRecord, spillRecord);
+    } else {
+      headRecord = spillRecord;
+    }
+    tailRecord = spillRecord;
+    if (tailSlot == CHUNK_SIZE) {
+      chunks.add(new Chunk());
+      tailSlot = 0;
+    }
+    size++;
+    return new SpilledRequest<>(chunks.getLast(), tailSlot++);
+  }
+
+  /**
+   * Take first request out of this run, requests cancelled meanwhile are skipped.
+   *
+   * @return - task running request, its work is read back when it runs, null if no request is left
+   */
+  RequestTask<U> poll() {
+    while (size > 0) {
+      SpilledRequest<U> spilledRequest = new SpilledRequest<>(chunks.getFirst(), headSlot);
+      long spillRecord = advance();
+      if (!spilledRequest.isCancelled()) {
+        return new RequestTask<>(getRequestKey(), spillStore, spillRecord, spilledRequest, requestKeyStateStore,
+            retryPolicy, deadLetterSink);
+      }
+      LOGGER.debug("Spilled request of request-key {} is cancelled, discarding it", getRequestKey());
+      spillStore.discard(spillRecord);
+    }
+    return null;
+  }
+
+  /**
+   * Cancel requests left in this run, e.g. on shutdown.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    boolean cancelled = size > 0;
+    while (size > 0) {
+      SpilledRequest<U> spilledRequest = new SpilledRequest<>(chunks.getFirst(), headSlot);
+      spillStore.discard(advance());
+      spilledRequest.cancel(mayInterruptIfRunning);
+    }
+    return cancelled;
+  }
+
+  /*
+   * Move past first request
+   *
+   * @return - its record
+   */
+  private long advance() {
+    long spillRecord = headRecord;
+    if (--size == 0) {
+      headRecord = -1;
+      tailRecord = -1;
+    } else {
+      headRecord = spillStore.next(spillRecord);
+    }
+    if (++headSlot == CHUNK_SIZE) {
+      chunks.removeFirst();
+      headSlot = 0;
+    }
+    return spillRecord;
+  }
+
+  /**
+   * Outcome slots of requests, guarded by its monitor, which waiters for their outcome wait on.
+   */
+  private static final class Chunk {
+    /*
+     * Result, CANCELLED, NULL_RESULT or Failure per slot, null till request is done
+     */
+    private final Object[] outcomes = new Object[CHUNK_SIZE];
+    /*
+     * Action or list of actions per slot, to run once request is done, created on first registration
+     */
+    private Object[] actions;
+  }
+
+  private static final class Failure {
+    private final Throwable cause;
+
+    Failure(Throwable cause) {
+      this.cause = cause;
+    }
+  }
+
+  /**
+   * Future of a request held in a run of spilled requests, refers to its outcome slot. It is
+   * completed by task which runs request once read back, see {@link #complete(RequestTask)}.
+   */
+  static final class SpilledRequest<U> implements RequestFuture<U> {
+    private final Chunk chunk;
+    private final int slot;
+
+    private SpilledRequest(final Chunk chunk, final int slot) {
+      this.chunk = chunk;
+      this.slot = slot;
+    }
+
+    /**
+     * Complete with outcome of given done task, which ran this request.
+     */
+    void complete(final RequestTask<U> requestTask) {
+      Object outcome;
+      if (requestTask.isCancelled()) {
+        outcome = CANCELLED;
+      } else {
+        try {
+          U result = requestTask.get();
+          outcome = result == null ? NULL_RESULT : result;
+        } catch (ExecutionException executionException) {
+          outcome = new Failure(executionException.getCause());
+        } catch (InterruptedException interruptedException) {
+          // task is done, so get never waits
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      complete(outcome);
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean complete(final Object outcome) {
+      Object action;
+      synchronized (chunk) {
+        if (chunk.outcomes[slot] != null) {
+          return false;
+        }
+        chunk.outcomes[slot] = outcome;
+        action = chunk.actions == null ? null : chunk.actions[slot];
+        if (action != null) {
+          chunk.actions[slot] = null;
+        }
+        chunk.notifyAll();
+      }
+      if (action instanceof List) {
+        for (Runnable listedAction : (List<Runnable>) action) {
+          listedAction.run();
+        }
+      } else if (action != null) {
+        ((Runnable) action).run();
+      }
+      return true;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      // request taken to run is not interrupted, its task checks for cancellation before every attempt
+      return complete(CANCELLED);
+    }
+
+    @Override
+    public boolean isCancelled() {
+      synchronized (chunk) {
+        return chunk.outcomes[slot] == CANCELLED;
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      synchronized (chunk) {
+        return chunk.outcomes[slot] != null;
+      }
+    }
+
+    @Override
+    public U get() throws InterruptedException, ExecutionException {
+      Object outcome;
+      synchronized (chunk) {
+        while ((outcome = chunk.outcomes[slot]) == null) {
+          chunk.wait();
+        }
+      }
+      return toResult(outcome);
+    }
+
+    @Override
+    public U get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+      long deadline = System.nanoTime() + unit.toNanos(timeout);
+      Object outcome;
+      synchronized (chunk) {
+        while ((outcome = chunk.outcomes[slot]) == null) {
+          long remaining = deadline - System.nanoTime();
+          if (remaining <= 0) {
+            throw new TimeoutException();
+          }
+          TimeUnit.NANOSECONDS.timedWait(chunk, remaining);
+        }
+      }
+      return toResult(outcome);
+    }
+
+    @SuppressWarnings("unchecked")
+    private U toResult(final Object outcome) throws ExecutionException {
+      if (outcome == CANCELLED) {
+        throw new CancellationException();
+      }
+      if (outcome instanceof Failure) {
+        throw new ExecutionException(((Failure) outcome).cause);
+      }
+      return outcome == NULL_RESULT ? null : (U) outcome;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public void whenDone(final Runnable action) {
+      synchronized (chunk) {
+        if (chunk.outcomes[slot] == null) {
+          if (chunk.actions == null) {
+            chunk.actions = new Object[CHUNK_SIZE];
+          }
+          Object registered = chunk.actions[slot];
+          if (registered == null) {
+            chunk.actions[slot] = action;
+          } else if (registered instanceof List) {
+            ((List<Runnable>) registered).add(action);
+          } else {
+            List<Runnable> actions = new ArrayList<>(2);
+            actions.add((Runnable) registered);
+            actions.add(action);
+            chunk.actions[slot] = actions;
+          }
+          return;
+        }
+      }
+      action.run();
+    }
+  }
+}
@@ -0,0 +1,39 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+/**
+ * A {@link Work} which keeps state per request key, e.g. an aggregate over requests of a user.
+ * <p>
+ * The state is kept by request serializer, and evicted as configured by
+ * {@link AsyncRequestSerializerConfig.Builder#setRequestKeyStateMaxSize(int)} and
+ * {@link AsyncRequestSerializerConfig.Builder#setRequestKeyStateExpiry(int)}.
+ *
+ * @param <U> - result type of work
+ * @param <S> - type of state
+ */
+public interface StatefulWork<U, S> extends Work<U> {
+
+  /**
+   * @param state - state of request key this work is submitted with
+   */
+  U call(RequestKeyState<S> state) throws Exception;
+
+  @Override
+  default U call() throws Exception {
+    throw new AsyncRequestSerializerException("StatefulWork has to be submitted to AsyncRequestSerializer");
+  }
+}
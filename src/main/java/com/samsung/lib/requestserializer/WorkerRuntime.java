@@ -0,0 +1,196 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A worker thread pool shared by several {@link AsyncRequestSerializer} instances, possibly of
+ * different result types, see {@link AsyncRequestSerializer#AsyncRequestSerializer(WorkerRuntime, String)}.
+ * So worker threads and their footprint follow configured pool size, not number of serializers.
+ * <p>
+ * Every attached serializer has its own namespace of request keys, i.e. same request key in two
+ * namespaces is processed independently. Request keys seen by pool wide configuration (e.g. rate
+ * limit key function, dead letter sink) are prefixed by namespace, as "namespace:requestKey".
+ * <p>
+ * A namespace can be given a share of pool, enforced as maximum active request keys of its request
+ * key group (see {@link RequestKeyGroupPolicy}), and a weight in fair scheduling of worker threads shared by
+ * request keys of different namespaces (see {@link FairSchedulingPolicy}). As fair scheduling only
+ * interleaves request keys sharing a worker thread, weights require worker thread sharing.
+ * <p>
+ * Configuration of runtime applies to every namespace, unless a namespace is attached with its own
+ * configuration, see {@link AsyncRequestSerializer#AsyncRequestSerializer(WorkerRuntime, String,
+ * AsyncRequestSerializerConfig)}.
+ */
+public class WorkerRuntime {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(WorkerRuntime.class);
+
+  static final char NAMESPACE_SEPARATOR = ':';
+
+  final AsyncRequestSerializerConfig asyncRequestSerializerConfig;
+  final PoolableWorkerThreadPool<Object> poolableWorkerThreadPool;
+
+  /*
+   * Namespaces of attached serializers not yet shut down
+   */
+  private final Set<String> namespaces = ConcurrentHashMap.newKeySet();
+
+  private WorkerRuntime(Builder builder) {
+    AsyncRequestSerializerConfig config = builder.asyncRequestSerializerConfig;
+    if (!builder.shares.isEmpty() || !builder.weights.isEmpty()) {
+      AsyncRequestSerializerConfig.Builder configBuilder = config.toBuilder();
+      if (!builder.shares.isEmpty()) {
+        int poolSize = config.workerThreadPoolSize <= 0 ? Runtime.getRuntime().availableProcessors()
+            : config.workerThreadPoolSize;
+        RequestKeyGroupPolicy.Builder groupPolicyBuilder =
+            new RequestKeyGroupPolicy.Builder().setGroupFunction(WorkerRuntime::getNamespace);
+        for (Map.Entry<String, Double> share : builder.shares.entrySet()) {
+          groupPolicyBuilder.setMaxActiveRequestKeys(share.getKey(),
+              Math.max(1, (int) Math.ceil(share.getValue() * poolSize)));
+        }
+        configBuilder.setRequestKeyGroupPolicy(groupPolicyBuilder.build());
+      }
+      if (!builder.weights.isEmpty()) {
+        configBuilder.setFairSchedulingPolicy(new FairSchedulingPolicy.Builder()
+            .setKeyClassFunction(WorkerRuntime::getNamespace)
+            .setWeights(builder.weights)
+            .build());
+      }
+      config = configBuilder.build();
+    }
+    this.asyncRequestSerializerConfig = config;
+    this.poolableWorkerThreadPool = new PoolableWorkerThreadPool<>(config);
+    LOGGER.debug("Initialized WorkerRuntime with namespace shares {} and weights {}", builder.shares,
+        builder.weights);
+  }
+
+  /**
+   * @return - request key of given namespace, as seen by pool
+   */
+  static String toRuntimeRequestKey(final String namespace, final String requestKey) {
+    return namespace + NAMESPACE_SEPARATOR + requestKey;
+  }
+
+  static String checkNamespace(final String namespace) {
+    Objects.requireNonNull(namespace, "Namespace is mandatory field");
+    if (namespace.indexOf(NAMESPACE_SEPARATOR) >= 0) {
+      throw new IllegalArgumentException("Namespace should not contain '" + NAMESPACE_SEPARATOR + "'");
+    }
+    return namespace;
+  }
+
+  /**
+   * Register namespace of a serializer being attached.
+   *
+   * @param namespaceConfig - configuration of namespace, null if it follows configuration of runtime
+   * @throws IllegalArgumentException - if namespace is invalid, or already attached
+   */
+  void attach(final String namespace, final AsyncRequestSerializerConfig namespaceConfig) {
+    if (!namespaces.add(checkNamespace(namespace))) {
+      throw new IllegalArgumentException("Namespace " + namespace + " is already attached to worker runtime");
+    }
+    if (namespaceConfig != null) {
+      poolableWorkerThreadPool.setNamespaceConfig(namespace, namespaceConfig);
+    }
+    LOGGER.debug("Attached namespace {}", namespace);
+  }
+
+  /**
+   * Release namespace of a serializer being shut down, so that it can be attached again.
+   */
+  void detach(final String namespace) {
+    poolableWorkerThreadPool.removeNamespaceConfig(namespace);
+    namespaces.remove(namespace);
+    LOGGER.debug("Detached namespace {}", namespace);
+  }
+
+  static String getNamespace(final String runtimeRequestKey) {
+    int separatorIndex = runtimeRequestKey.indexOf(NAMESPACE_SEPARATOR);
+    // e.g. poison pill of a worker thread has no namespace
+    return separatorIndex < 0 ? "" : runtimeRequestKey.substring(0, separatorIndex);
+  }
+
+  /**
+   * @return - request key as seen by serializer of its namespace
+   */
+  static String toNamespaceRequestKey(final String runtimeRequestKey) {
+    return runtimeRequestKey.substring(runtimeRequestKey.indexOf(NAMESPACE_SEPARATOR) + 1);
+  }
+
+  /**
+   * Shut down pool, see {@link AsyncRequestSerializer#shutdown(long)}. Attached serializers should be
+   * shut down first, to drain their requests.
+   */
+  public void shutdown() {
+    poolableWorkerThreadPool.shutdown();
+  }
+
+  public static class Builder {
+    private final AsyncRequestSerializerConfig asyncRequestSerializerConfig;
+    private final Map<String, Double> shares = new HashMap<>();
+    private final Map<String, Double> weights = new HashMap<>();
+
+    /**
+     * @param asyncRequestSerializerConfig - configuration of pool, and of attached serializers
+     */
+    public Builder(AsyncRequestSerializerConfig asyncRequestSerializerConfig) {
+      this.asyncRequestSerializerConfig = Objects.requireNonNull(asyncRequestSerializerConfig, "Config is mandatory");
+    }
+
+    /**
+     * Fraction (0 to 1) of pool size, as number of request keys of given namespace mapped to worker
+     * threads at once. So namespace never holds more than this fraction of worker threads, while with
+     * worker thread sharing its request keys sharing a worker thread count one each. Namespaces not
+     * given here are not limited. Can not be combined with a configured {@link RequestKeyGroupPolicy}.
+     */
+    public Builder setShare(String namespace, double share) {
+      this.shares.put(checkNamespace(namespace), share);
+      return this;
+    }
+
+    /**
+     * Weight of given namespace in fair scheduling, other namespaces have weight 1. Requires worker
+     * thread sharing to be enabled by configuration, as otherwise every worker thread serves one
+     * request key and there is nothing to interleave. Can not be combined with a configured
+     * {@link FairSchedulingPolicy}.
+     */
+    public Builder setWeight(String namespace, double weight) {
+      this.weights.put(checkNamespace(namespace), weight);
+      return this;
+    }
+
+    public WorkerRuntime build() {
+      if (!shares.isEmpty() && asyncRequestSerializerConfig.requestKeyGroupPolicy != null) {
+        throw new IllegalArgumentException("Namespace shares can not be combined with request key group policy");
+      }
+      if (!weights.isEmpty() && asyncRequestSerializerConfig.fairSchedulingPolicy != null) {
+        throw new IllegalArgumentException("Namespace weights can not be combined with fair scheduling policy");
+      }
+      if (!weights.isEmpty() && !asyncRequestSerializerConfig.workerThreadSharing) {
+        throw new IllegalArgumentException("Namespace weights require worker thread sharing to be enabled");
+      }
+      return new WorkerRuntime(this);
+    }
+  }
+}
@@ -16,25 +16,43 @@
 package com.samsung.lib.requestserializer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
 import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 public class AsyncRequestSerializerTest {
 
@@ -216,4 +234,910 @@ public class AsyncRequestSerializerTest {
 
     LOGGER.info("Total time to run test - {} sec.", (System.currentTimeMillis() - st) / SECOND);
   }
+
+  @Test
+  public void testAsyncWork() throws Exception {
+    AsyncRequestSerializer<Integer> singleThreadSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build());
+    List<Integer> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    CompletableFuture<Integer> pendingIo = new CompletableFuture<>();
+
+    Future<Integer> first = singleThreadSerializer.submit("a", (AsyncWork<Integer>) () -> {
+      executionOrder.add(1);
+      return pendingIo;
+    });
+    Future<Integer> second = singleThreadSerializer.submit("a", (Work<Integer>) () -> {
+      executionOrder.add(2);
+      return 2;
+    });
+
+    // the only worker thread is free to serve other request key, while "a" is waiting for its I/O
+    Future<Integer> other = singleThreadSerializer.submit("b", (Work<Integer>) () -> 3);
+    assertEquals(3, other.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertFalse(first.isDone());
+    assertFalse(second.isDone());
+
+    pendingIo.complete(1);
+    assertEquals(1, first.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(2, second.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(Arrays.asList(1, 2), executionOrder);
+  }
+
+  @Test
+  public void testStatefulWork() throws Exception {
+    Map<String, Integer> expectedCount = new HashMap<>();
+    Map<String, Future<Integer>> lastCount = new HashMap<>();
+    Random random = new Random();
+    for (int t = 0; t < MAX_TRIAL; t++) {
+      String uids = String.valueOf(random.nextInt(USER_COUNT));
+      expectedCount.merge(uids, 1, Integer::sum);
+      StatefulWork<Integer, AtomicInteger> work = state -> {
+        if (state.get() == null) {
+          state.set(new AtomicInteger());
+        }
+        return state.get().incrementAndGet();
+      };
+      lastCount.put(uids, asyncRequestSerializer.submit(uids, work));
+    }
+    for (Entry<String, Integer> expected : expectedCount.entrySet()) {
+      assertEquals(expected.getValue(), lastCount.get(expected.getKey()).get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    }
+  }
+
+  @Test
+  public void testHotRequestKey() throws Exception {
+    AsyncRequestSerializer<Integer> hotKeySerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(4)
+            .setHotRequestKeyCount(1)
+            .setHotRequestKeyThreshold(0.5)
+            .setHotRequestKeyWindow(200)
+            .build());
+    Random random = new Random();
+    Future<Integer> last = null;
+    long st = System.currentTimeMillis();
+    while (System.currentTimeMillis() - st < 3 * 200) {
+      // most of the requests are for "hot" request key
+      String uids = random.nextInt(10) < 8 ? "hot" : String.valueOf(random.nextInt(USER_COUNT));
+      last = hotKeySerializer.submit(uids, (Work<Integer>) () -> 1);
+      Thread.sleep(1);
+    }
+    last.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    Map<String, Double> hotRequestKeys = hotKeySerializer.getHotRequestKeys();
+    assertEquals(1, hotRequestKeys.size());
+    assertTrue(hotRequestKeys.get("hot") > 0);
+  }
+
+  @Test
+  public void testHotRequestKeyPinning() throws Exception {
+    ch.qos.logback.classic.Logger poolLogger =
+        (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(PoolableWorkerThreadPool.class);
+    ListAppender<ILoggingEvent> poolLogs = new ListAppender<>();
+    poolLogs.start();
+    poolLogger.addAppender(poolLogs);
+    try {
+      AsyncRequestSerializer<String> hotKeySerializer = new AsyncRequestSerializer<>(
+          new AsyncRequestSerializerConfig.Builder()
+              .setWorkerThreadPoolSize(2)
+              .setLocalRequestQueueTimeOut(20)
+              .setHotRequestKeyCount(1)
+              .setHotRequestKeyThreshold(0.5)
+              .setHotRequestKeyWindow(300)
+              .build());
+      Work<String> threadName = () -> Thread.currentThread().getName();
+      long st = System.currentTimeMillis();
+      while (System.currentTimeMillis() - st < 400) {
+        hotKeySerializer.submit("hot", threadName);
+        Thread.sleep(2);
+      }
+      String dedicatedThread = hotKeySerializer.submit("hot", threadName).get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+      assertTrue(hotKeySerializer.getHotRequestKeys().containsKey("hot"));
+
+      // dedicated worker thread is kept while idle beyond local request queue timeout, without waking
+      // up on every timeout
+      poolLogs.list.clear();
+      for (int i = 0; i < 5; i++) {
+        Thread.sleep(60);
+        assertEquals(dedicatedThread, hotKeySerializer.submit("hot", threadName).get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+      }
+      long refusals = poolLogs.list.stream()
+          .filter(event -> event.getFormattedMessage().contains("stays dedicated")).count();
+      assertTrue("Dedicated worker thread refused to return " + refusals + " times", refusals <= 2);
+
+      // once request key cools down, worker thread is released, so both worker threads serve other keys
+      Thread.sleep(2 * 300);
+      assertTrue(hotKeySerializer.getHotRequestKeys().isEmpty());
+      CountDownLatch bothRunning = new CountDownLatch(2);
+      Work<String> awaitOther = () -> {
+        bothRunning.countDown();
+        return bothRunning.await(SLEEP_TIME, TimeUnit.MILLISECONDS) ? Thread.currentThread().getName() : "alone";
+      };
+      Future<String> first = hotKeySerializer.submit("other-0", awaitOther);
+      Future<String> second = hotKeySerializer.submit("other-1", awaitOther);
+      assertFalse(first.get(SLEEP_TIME, TimeUnit.MILLISECONDS).equals("alone"));
+      assertFalse(second.get(SLEEP_TIME, TimeUnit.MILLISECONDS).equals("alone"));
+      assertTrue(hotKeySerializer.shutdown(SLEEP_TIME));
+    } finally {
+      poolLogger.detachAppender(poolLogs);
+    }
+  }
+
+  @Test
+  public void testWorkerThreadSharing() throws Exception {
+    AsyncRequestSerializer<Integer> sharingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .setWorkerThreadSharing(true)
+            .build());
+    Map<String, List<Integer>> executionOrder = new ConcurrentHashMap<>();
+    Map<String, AtomicInteger> threadWorkCounts = new ConcurrentHashMap<>();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < MAX_TRIAL; t++) {
+      String uids = String.valueOf(t % USER_COUNT);
+      int sequence = t / USER_COUNT;
+      results.add(sharingSerializer.submit(uids, (Work<Integer>) () -> {
+        executionOrder.computeIfAbsent(uids, key -> Collections.synchronizedList(new ArrayList<>())).add(sequence);
+        threadWorkCounts.computeIfAbsent(Thread.currentThread().getName(), name -> new AtomicInteger()).incrementAndGet();
+        Thread.sleep(1);
+        return sequence;
+      }));
+    }
+    for (Future<Integer> result : results) {
+      result.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(USER_COUNT, executionOrder.size());
+    for (List<Integer> sequences : executionOrder.values()) {
+      for (int sequence = 0; sequence < sequences.size(); sequence++) {
+        assertEquals(sequence, sequences.get(sequence).intValue());
+      }
+    }
+    // request keys are placed by load, so both worker threads take a fair part of works
+    LOGGER.info("Works run per worker thread {}", threadWorkCounts);
+    assertEquals(2, threadWorkCounts.size());
+    for (AtomicInteger threadWorkCount : threadWorkCounts.values()) {
+      assertTrue(threadWorkCount.get() >= MAX_TRIAL / 4);
+    }
+  }
+
+  @Test
+  public void testWorkStealing() throws Exception {
+    long withoutStealing = runSkewedWork(false);
+    long withStealing = runSkewedWork(true);
+    LOGGER.info("Time to process skewed work without work stealing -> {} ms.", withoutStealing);
+    LOGGER.info("Time to process skewed work with work stealing -> {} ms.", withStealing);
+    assertTrue(withStealing < SLOW_WORK_TIME);
+  }
+
+  private static final int SLOW_WORK_TIME = 2000;
+
+  /**
+   * A slow request key along with many fast request keys, on two shared worker threads.
+   *
+   * @return - time (in ms.) to process fast request keys
+   */
+  private long runSkewedWork(boolean workStealing) throws Exception {
+    AsyncRequestSerializer<Integer> sharingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .setWorkerThreadSharing(true)
+            .setWorkStealing(workStealing)
+            .build());
+    Future<Integer> slow = sharingSerializer.submit("slow", (Work<Integer>) () -> {
+      Thread.sleep(SLOW_WORK_TIME);
+      return 0;
+    });
+    long st = System.currentTimeMillis();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < 60; t++) {
+      results.add(sharingSerializer.submit(String.valueOf(t % 20), (Work<Integer>) () -> {
+        Thread.sleep(10);
+        return 1;
+      }));
+    }
+    for (Future<Integer> result : results) {
+      result.get(2 * SLOW_WORK_TIME, TimeUnit.MILLISECONDS);
+    }
+    long time = System.currentTimeMillis() - st;
+    slow.get(2 * SLOW_WORK_TIME, TimeUnit.MILLISECONDS);
+    return time;
+  }
+
+  @Test
+  public void testOffsetCommit() throws Exception {
+    AtomicLong lastCommit = new AtomicLong(-1);
+    AsyncRequestSerializer<Integer> logSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(8)
+            .setOffsetCommitListener((partition, offset) -> {
+              assertTrue(offset > lastCommit.get());
+              lastCommit.set(offset);
+            })
+            .build());
+    Random random = new Random();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int offset = 0; offset < MAX_TRIAL; offset++) {
+      int workTime = random.nextInt(5);
+      results.add(logSerializer.submit(String.valueOf(random.nextInt(USER_COUNT)), (Work<Integer>) () -> {
+        Thread.sleep(workTime);
+        return workTime;
+      }, 0, offset));
+    }
+    for (Future<Integer> result : results) {
+      result.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    // offset is completed right after future of its request
+    long st = System.currentTimeMillis();
+    while (logSerializer.getCommittedOffset(0) < MAX_TRIAL - 1 && System.currentTimeMillis() - st < SLEEP_TIME) {
+      Thread.sleep(1);
+    }
+    assertEquals(MAX_TRIAL - 1, logSerializer.getCommittedOffset(0));
+    assertEquals(MAX_TRIAL - 1, lastCommit.get());
+  }
+
+  @Test
+  public void testOffsetOfCancelledAndRejectedRequests() throws Exception {
+    List<Long> commits = Collections.synchronizedList(new ArrayList<>());
+    AsyncRequestSerializer<Integer> logSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(4)
+            .setRequestKeyGroupPolicy(new RequestKeyGroupPolicy.Builder()
+                .setGroupFunction(requestKey -> requestKey.split("/")[0])
+                .setMaxActiveRequestKeys(1)
+                .setQueueCapacity(0)
+                .build())
+            .setOffsetCommitListener((partition, offset) -> commits.add(offset))
+            .build());
+    Future<Integer> first = logSerializer.submit("capped/a", (Work<Integer>) () -> {
+      Thread.sleep(50);
+      return 0;
+    }, 0, 0);
+    try {
+      logSerializer.submit("capped/b", (Work<Integer>) () -> 1, 0, 1);
+      fail("Request beyond queue capacity of its group should be rejected");
+    } catch (AsyncRequestSerializerException asyncRequestSerializerException) {
+      LOGGER.info("Rejected request: {}", asyncRequestSerializerException.getMessage());
+    }
+    Future<Integer> third = logSerializer.submit("other/a", (Work<Integer>) () -> 2, 0, 2);
+    first.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    third.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    long st = System.currentTimeMillis();
+    while (logSerializer.getCommittedOffset(0) < 2 && System.currentTimeMillis() - st < SLEEP_TIME) {
+      Thread.sleep(1);
+    }
+    // rejected offset does not hold watermark back
+    assertEquals(2, logSerializer.getCommittedOffset(0));
+
+    Future<Integer> running = logSerializer.submit("other/a", (Work<Integer>) () -> {
+      Thread.sleep(200);
+      return 3;
+    }, 0, 3);
+    Future<Integer> cancelled = logSerializer.submit("other/a", (Work<Integer>) () -> 4, 0, 4);
+    assertFalse(logSerializer.shutdown(50));
+    assertTrue(cancelled.isCancelled());
+    running.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    st = System.currentTimeMillis();
+    while (logSerializer.getCommittedOffset(0) < 3 && System.currentTimeMillis() - st < SLEEP_TIME) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(20);
+    // cancelled offset never ran, so it is not committed
+    assertEquals(3, logSerializer.getCommittedOffset(0));
+    assertFalse(commits.contains(4L));
+  }
+
+  @Test
+  public void testRetry() throws Exception {
+    List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+    AsyncRequestSerializer<Integer> retrySerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setRetryPolicy(new RetryPolicy.Builder()
+                .setMaxAttempts(3)
+                .setInitialBackoff(200)
+                .setJitter(0)
+                .build())
+            .setDeadLetterSink((requestKey, request, failure) -> deadLetters.add(requestKey))
+            .build());
+    List<String> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger attempts = new AtomicInteger();
+
+    Future<Integer> flaky = retrySerializer.submit("flaky", (Work<Integer>) () -> {
+      if (attempts.incrementAndGet() < 3) {
+        throw new IllegalStateException("Failing attempt " + attempts.get());
+      }
+      executionOrder.add("flaky-1");
+      return attempts.get();
+    });
+    Future<Integer> next = retrySerializer.submit("flaky", (Work<Integer>) () -> {
+      executionOrder.add("flaky-2");
+      return 0;
+    });
+    // the only worker thread is free to serve other request key, while "flaky" waits for its backoff
+    Future<Integer> other = retrySerializer.submit("other", (Work<Integer>) () -> {
+      executionOrder.add("other");
+      return 0;
+    });
+    Future<Integer> broken = retrySerializer.submit("broken", (Work<Integer>) () -> {
+      throw new IllegalStateException("Always failing");
+    });
+
+    assertEquals(3, flaky.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    next.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    other.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    assertEquals(Arrays.asList("other", "flaky-1", "flaky-2"), executionOrder);
+    try {
+      broken.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+      fail("Permanently failed request should complete exceptionally");
+    } catch (ExecutionException executionException) {
+      assertTrue(executionException.getCause() instanceof IllegalStateException);
+    }
+    assertEquals(Collections.singletonList("broken"), deadLetters);
+  }
+
+  @Test
+  public void testCancelDuringRetryBackoff() throws Exception {
+    ch.qos.logback.classic.Logger workerLogger =
+        (ch.qos.logback.classic.Logger) LoggerFactory.getLogger(PoolableWorkerThread.class);
+    ListAppender<ILoggingEvent> workerLogs = new ListAppender<>();
+    workerLogs.start();
+    workerLogger.addAppender(workerLogs);
+    try {
+      AsyncRequestSerializer<Integer> retrySerializer = new AsyncRequestSerializer<>(
+          new AsyncRequestSerializerConfig.Builder()
+              .setWorkerThreadPoolSize(1)
+              .setRetryPolicy(new RetryPolicy.Builder()
+                  .setMaxAttempts(3)
+                  .setInitialBackoff(100)
+                  .setJitter(0)
+                  .build())
+              .build());
+      AtomicInteger attempts = new AtomicInteger();
+      CountDownLatch failed = new CountDownLatch(1);
+      Future<Integer> failing = retrySerializer.submit("failing", (Work<Integer>) () -> {
+        attempts.incrementAndGet();
+        failed.countDown();
+        throw new IllegalStateException("Failing attempt");
+      });
+      Future<Integer> next = retrySerializer.submit("failing", (Work<Integer>) () -> 1);
+      assertTrue(failed.await(SLEEP_TIME, TimeUnit.MILLISECONDS));
+      assertTrue(failing.cancel(false));
+
+      // request key resumes after backoff, skipping cancelled request
+      assertEquals(1, next.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+      assertEquals(1, attempts.get());
+      assertTrue(retrySerializer.shutdown(SLEEP_TIME));
+      assertTrue(workerLogs.list.stream().noneMatch(event -> event.getLevel() == Level.ERROR));
+    } finally {
+      workerLogger.detachAppender(workerLogs);
+    }
+  }
+
+  @Test
+  public void testRateLimit() throws Exception {
+    AsyncRequestSerializer<Integer> limitedSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setRateLimits(Collections.singletonMap("limited", new RateLimit(10, 1)))
+            .build());
+    List<String> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    List<Future<Integer>> limitedFutures = new ArrayList<>();
+    long st = System.currentTimeMillis();
+    for (int i = 0; i < 5; i++) {
+      int index = i;
+      limitedFutures.add(limitedSerializer.submit("limited", (Work<Integer>) () -> {
+        executionOrder.add("limited-" + index);
+        return index;
+      }));
+    }
+    // the only worker thread is free to serve other request key, while "limited" waits for permits
+    Future<Integer> free = limitedSerializer.submit("free", (Work<Integer>) () -> {
+      executionOrder.add("free");
+      return 0;
+    });
+
+    free.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    for (int i = 0; i < 5; i++) {
+      assertEquals(i, limitedFutures.get(i).get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    }
+    long elapsed = System.currentTimeMillis() - st;
+    LOGGER.info("5 requests limited to 10 per second took {} ms.", elapsed);
+    assertTrue(elapsed >= 350);
+    assertTrue(executionOrder.indexOf("free") < executionOrder.indexOf("limited-4"));
+    assertEquals(Arrays.asList("limited-0", "limited-1", "limited-2", "limited-3", "limited-4"),
+        executionOrder.stream().filter(entry -> entry.startsWith("limited")).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void testFairScheduling() throws Exception {
+    AsyncRequestSerializer<Integer> fairSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setWorkerThreadSharing(true)
+            .setFairSchedulingPolicy(new FairSchedulingPolicy.Builder()
+                .setQuantum(2)
+                .setKeyClassFunction(requestKey -> requestKey.split("-")[0])
+                .setWeights(Collections.singletonMap("light", 0.5))
+                .build())
+            .build());
+    List<String> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 20; i++) {
+      int index = i;
+      futures.add(fairSerializer.submit("heavy-1", (Work<Integer>) () -> {
+        Thread.sleep(10);
+        executionOrder.add("heavy-1");
+        return index;
+      }));
+    }
+    for (int i = 0; i < 2; i++) {
+      int index = i;
+      futures.add(fairSerializer.submit("light-1", (Work<Integer>) () -> {
+        executionOrder.add("light-1");
+        return index;
+      }));
+    }
+    int runBeforeLight = executionOrder.size();
+    for (Future<Integer> future : futures) {
+      future.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    LOGGER.info("Execution order with fair scheduling {}", executionOrder);
+    // light request key gets its turn (of 1 work) after every 2 works of heavy one, not after all 20
+    int firstLight = executionOrder.indexOf("light-1");
+    assertTrue(firstLight <= runBeforeLight + 3);
+    assertTrue(executionOrder.lastIndexOf("light-1") - firstLight >= 2);
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    Path spillDirectory = Files.createTempDirectory("spill");
+    AsyncRequestSerializer<Integer> spillingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setSpillDirectory(spillDirectory)
+            .setSpillThreshold(10)
+            .setSpillSegmentSize(4096)
+            .build());
+    CountDownLatch blocker = new CountDownLatch(1);
+    Future<Integer> blocking = spillingSerializer.submit("spill", (Work<Integer>) () -> {
+      blocker.await();
+      return -1;
+    });
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 200; i++) {
+      int index = i;
+      futures.add(spillingSerializer.submit("spill", (Work<Integer> & Serializable) () -> index));
+    }
+    long spilled = spillingSerializer.getSpilledRequestCount();
+    LOGGER.info("{} requests spilled in {} segments", spilled, Files.list(spillDirectory).count());
+    // works are serialized before locks are taken, so spilling starts from request after threshold
+    assertTrue(spilled >= 185);
+    assertTrue(Files.list(spillDirectory).count() > 3);
+    // cancelled while spilled, it is skipped
+    assertTrue(futures.get(150).cancel(false));
+
+    blocker.countDown();
+    assertEquals(-1, blocking.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    for (int i = 0; i < 200; i++) {
+      if (i == 150) {
+        assertTrue(futures.get(i).isCancelled());
+        continue;
+      }
+      assertEquals(i, futures.get(i).get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    }
+    assertEquals(0, spillingSerializer.getSpilledRequestCount());
+    // drained segments are recycled, only a few are kept for reuse
+    assertTrue(Files.list(spillDirectory).count() <= 3);
+  }
+
+  @Test
+  public void testFlushAndShutdown() throws Exception {
+    AsyncRequestSerializer<Integer> flushingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .build());
+    List<Future<Integer>> flushedFutures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      flushedFutures.add(flushingSerializer.submit("flush-" + (i % 2), (Work<Integer>) () -> {
+        Thread.sleep(20);
+        return 0;
+      }));
+    }
+    CompletableFuture<Void> flushed = flushingSerializer.flushAll();
+    Future<Integer> later = flushingSerializer.submit("flush-0", (Work<Integer>) () -> {
+      Thread.sleep(SLEEP_TIME);
+      return 1;
+    });
+    flushed.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    for (Future<Integer> future : flushedFutures) {
+      assertTrue(future.isDone());
+    }
+    assertTrue(flushingSerializer.flush("nothing-pending").isDone());
+
+    // request submitted after flush is still running, and not waited for long enough
+    Future<Integer> cancelled = flushingSerializer.submit("flush-0", (Work<Integer>) () -> 2);
+    assertFalse(flushingSerializer.shutdown(100));
+    assertTrue(cancelled.isCancelled());
+    assertEquals(1, later.get(2 * SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    try {
+      flushingSerializer.submit("flush-0", (Work<Integer>) () -> 3);
+      fail("Request submitted after shutdown should be rejected");
+    } catch (AsyncRequestSerializerException asyncRequestSerializerException) {
+      LOGGER.info("Rejected request after shutdown: {}", asyncRequestSerializerException.getMessage());
+    }
+  }
+
+  @Test
+  public void testShutdownWithExhaustedPool() throws Exception {
+    AsyncRequestSerializer<Integer> exhaustedSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setRequestKeyGroupPolicy(new RequestKeyGroupPolicy.Builder()
+                .setGroupFunction(requestKey -> requestKey.split("/")[0])
+                .setMaxActiveRequestKeys(1)
+                .setQueueCapacity(1)
+                .build())
+            .build());
+    CountDownLatch blocker = new CountDownLatch(1);
+    Future<Integer> blocking = exhaustedSerializer.submit("group/0", (Work<Integer>) () -> {
+      blocker.await();
+      return 0;
+    });
+    // only worker thread is busy, and pending queue of group is full
+    Future<Integer> pending = exhaustedSerializer.submit("group/1", (Work<Integer>) () -> 1);
+
+    // barriers neither wait for a worker thread, nor are rejected by full pending queue
+    CompletableFuture<Void> flushed = exhaustedSerializer.flushAll();
+    assertFalse(flushed.isDone());
+    ScheduledExecutorService unblocker = Executors.newSingleThreadScheduledExecutor();
+    unblocker.schedule(blocker::countDown, 100, TimeUnit.MILLISECONDS);
+    assertTrue(exhaustedSerializer.shutdown(SLEEP_TIME));
+    unblocker.shutdown();
+    assertTrue(flushed.isDone());
+    assertEquals(0, blocking.get().intValue());
+    assertEquals(1, pending.get().intValue());
+  }
+
+  @Test
+  public void testRequestKeyGroups() throws Exception {
+    AsyncRequestSerializer<Integer> groupingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(4)
+            .setRequestKeyGroupPolicy(new RequestKeyGroupPolicy.Builder()
+                .setGroupFunction(requestKey -> requestKey.split("/")[0])
+                .setMaxActiveRequestKeys(2)
+                .setQueueCapacity("capped", 2)
+                .build())
+            .build());
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    Map<String, List<Integer>> executionOrder = new ConcurrentHashMap<>();
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      for (int user = 0; user < 4; user++) {
+        String requestKey = "large/" + user;
+        int index = i;
+        futures.add(groupingSerializer.submit(requestKey, (Work<Integer>) () -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          Thread.sleep(20);
+          running.decrementAndGet();
+          executionOrder.computeIfAbsent(requestKey, key -> Collections.synchronizedList(new ArrayList<>())).add(index);
+          return index;
+        }));
+      }
+    }
+    // large tenant can not starve small one
+    Future<Integer> small = groupingSerializer.submit("small/0", (Work<Integer>) () -> 0);
+    small.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    assertFalse(futures.get(futures.size() - 1).isDone());
+    for (Future<Integer> future : futures) {
+      future.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(2, maxRunning.get());
+    for (List<Integer> order : executionOrder.values()) {
+      assertEquals(Arrays.asList(0, 1, 2, 3, 4), order);
+    }
+
+    CountDownLatch blocker = new CountDownLatch(1);
+    groupingSerializer.submit("capped/0", (Work<Integer>) () -> {
+      blocker.await();
+      return 0;
+    });
+    groupingSerializer.submit("capped/1", (Work<Integer>) () -> {
+      blocker.await();
+      return 0;
+    });
+    Future<Integer> pending = groupingSerializer.submit("capped/2", (Work<Integer>) () -> 2);
+    groupingSerializer.submit("capped/2", (Work<Integer>) () -> 2);
+    try {
+      groupingSerializer.submit("capped/3", (Work<Integer>) () -> 3);
+      fail("Request beyond queue capacity of group should be rejected");
+    } catch (AsyncRequestSerializerException asyncRequestSerializerException) {
+      LOGGER.info("Rejected request: {}", asyncRequestSerializerException.getMessage());
+    }
+    assertFalse(pending.isDone());
+    blocker.countDown();
+    assertEquals(2, pending.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+  }
+
+  @Test
+  public void testWorkerRuntime() throws Exception {
+    WorkerRuntime workerRuntime = new WorkerRuntime.Builder(
+        new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(4).setWorkerThreadSharing(true).build())
+        .setShare("batch", 0.5)
+        .setWeight("interactive", 2)
+        .build();
+    AsyncRequestSerializer<Integer> batchSerializer = new AsyncRequestSerializer<>(workerRuntime, "batch");
+    AsyncRequestSerializer<String> interactiveSerializer = new AsyncRequestSerializer<>(workerRuntime, "interactive");
+    try {
+      new AsyncRequestSerializer<Integer>(workerRuntime, "batch");
+      fail("Namespace already attached should be rejected");
+    } catch (IllegalArgumentException illegalArgumentException) {
+      LOGGER.info("Rejected namespace: {}", illegalArgumentException.getMessage());
+    }
+
+    // batch namespace holds at most half of worker threads, even while they are idle
+    AtomicInteger running = new AtomicInteger();
+    AtomicInteger maxRunning = new AtomicInteger();
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      for (int key = 0; key < 4; key++) {
+        futures.add(batchSerializer.submit("key-" + key, (Work<Integer>) () -> {
+          maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+          Thread.sleep(20);
+          running.decrementAndGet();
+          return 0;
+        }));
+      }
+    }
+    Future<String> interactive = interactiveSerializer.submit("key", (Work<String>) () -> "done");
+    assertEquals("done", interactive.get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    for (Future<Integer> future : futures) {
+      future.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    assertEquals(2, maxRunning.get());
+
+    // same request key in different namespaces is not serialized
+    CountDownLatch bothRunning = new CountDownLatch(2);
+    Future<Integer> batchFuture = batchSerializer.submit("key", (Work<Integer>) () -> {
+      bothRunning.countDown();
+      return bothRunning.await(SLEEP_TIME, TimeUnit.MILLISECONDS) ? 1 : 0;
+    });
+    Future<String> interactiveFuture = interactiveSerializer.submit("key", (Work<String>) () -> {
+      bothRunning.countDown();
+      return bothRunning.await(SLEEP_TIME, TimeUnit.MILLISECONDS) ? "both" : "alone";
+    });
+    assertEquals(1, batchFuture.get(2 * SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals("both", interactiveFuture.get(2 * SLEEP_TIME, TimeUnit.MILLISECONDS));
+
+    assertTrue(batchSerializer.shutdown(SLEEP_TIME));
+    // other serializer is still served by shared pool
+    assertEquals("still", interactiveSerializer.submit("key", (Work<String>) () -> "still")
+        .get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    assertTrue(interactiveSerializer.shutdown(SLEEP_TIME));
+    workerRuntime.shutdown();
+  }
+
+  @Test
+  public void testWorkerRuntimeWeights() throws Exception {
+    try {
+      new WorkerRuntime.Builder(new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build())
+          .setWeight("interactive", 3)
+          .build();
+      fail("Namespace weights without worker thread sharing should be rejected");
+    } catch (IllegalArgumentException illegalArgumentException) {
+      LOGGER.info("Rejected weights: {}", illegalArgumentException.getMessage());
+    }
+    WorkerRuntime workerRuntime = new WorkerRuntime.Builder(
+        new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).setWorkerThreadSharing(true).build())
+        .setWeight("interactive", 3)
+        .build();
+    AsyncRequestSerializer<Integer> batchSerializer = new AsyncRequestSerializer<>(workerRuntime, "batch");
+    AsyncRequestSerializer<Integer> interactiveSerializer = new AsyncRequestSerializer<>(workerRuntime, "interactive");
+    CountDownLatch blocker = new CountDownLatch(1);
+    Future<Integer> blocking = batchSerializer.submit("blocker", (Work<Integer>) () -> {
+      blocker.await();
+      return -1;
+    });
+    // only worker thread is busy, so both request keys share it
+    List<String> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    List<Future<Integer>> futures = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      futures.add(batchSerializer.submit("key", (Work<Integer>) () -> {
+        executionOrder.add("batch");
+        return 0;
+      }));
+    }
+    for (int i = 0; i < 12; i++) {
+      futures.add(interactiveSerializer.submit("key", (Work<Integer>) () -> {
+        executionOrder.add("interactive");
+        return 0;
+      }));
+    }
+    blocker.countDown();
+    assertEquals(-1, blocking.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    for (Future<Integer> future : futures) {
+      future.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+    LOGGER.info("Execution order with namespace weights {}", executionOrder);
+    // interactive namespace runs 3 works per turn of batch one, so it is done while most of batch waits
+    int batchBeforeInteractiveDone =
+        Collections.frequency(executionOrder.subList(0, executionOrder.lastIndexOf("interactive")), "batch");
+    assertTrue(batchBeforeInteractiveDone <= 5);
+    assertTrue(batchSerializer.shutdown(SLEEP_TIME));
+    assertTrue(interactiveSerializer.shutdown(SLEEP_TIME));
+    workerRuntime.shutdown();
+  }
+
+  @Test
+  public void testWorkerRuntimeNamespaceConfig() throws Exception {
+    Map<String, Long> sharedCommits = new ConcurrentHashMap<>();
+    WorkerRuntime workerRuntime = new WorkerRuntime.Builder(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .setOffsetCommitListener(new OffsetCommitListener() {
+              @Override
+              public void commit(int partition, long offset) {
+                fail("Namespace of commit should be given");
+              }
+
+              @Override
+              public void commit(String namespace, int partition, long offset) {
+                sharedCommits.put(namespace + "/" + partition, offset);
+              }
+            })
+            .build())
+        .build();
+    List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+    Map<Integer, Long> ownCommits = new ConcurrentHashMap<>();
+    AsyncRequestSerializer<Integer> sharedSerializer = new AsyncRequestSerializer<>(workerRuntime, "shared");
+    AsyncRequestSerializer<Integer> ownSerializer = new AsyncRequestSerializer<>(workerRuntime, "own",
+        new AsyncRequestSerializerConfig.Builder()
+            .setOffsetCommitListener(ownCommits::put)
+            .setRetryPolicy(new RetryPolicy.Builder().setMaxAttempts(2).setInitialBackoff(10).build())
+            .setDeadLetterSink((requestKey, request, failure) -> deadLetters.add(requestKey))
+            .build());
+    AsyncRequestSerializer<Integer> otherSerializer = new AsyncRequestSerializer<>(workerRuntime, "other");
+
+    // same partition in different namespaces is committed independently
+    for (int offset = 0; offset < 5; offset++) {
+      sharedSerializer.submit("key", (Work<Integer>) () -> 0, 0, offset);
+    }
+    for (int offset = 0; offset < 3; offset++) {
+      ownSerializer.submit("key", (Work<Integer>) () -> 0, 0, offset);
+    }
+    otherSerializer.submit("key", (Work<Integer>) () -> 0, 0, 7);
+    sharedSerializer.flushAll().get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    ownSerializer.flushAll().get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    otherSerializer.flushAll().get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    assertEquals(4L, sharedCommits.get("shared/0").longValue());
+    assertEquals(7L, sharedCommits.get("other/0").longValue());
+    assertFalse(sharedCommits.containsKey("own/0"));
+    assertEquals(2L, ownCommits.get(0).longValue());
+
+    // retry policy and dead letter sink of namespace apply to its request keys only
+    AtomicInteger ownAttempts = new AtomicInteger();
+    Future<Integer> ownFailure = ownSerializer.submit("failing", (Work<Integer>) () -> {
+      ownAttempts.incrementAndGet();
+      throw new IllegalStateException("Always failing");
+    });
+    AtomicInteger sharedAttempts = new AtomicInteger();
+    Future<Integer> sharedFailure = sharedSerializer.submit("failing", (Work<Integer>) () -> {
+      sharedAttempts.incrementAndGet();
+      throw new IllegalStateException("Always failing");
+    });
+    for (Future<Integer> failure : Arrays.asList(ownFailure, sharedFailure)) {
+      try {
+        failure.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+        fail("Permanently failed request should complete exceptionally");
+      } catch (ExecutionException executionException) {
+        assertTrue(executionException.getCause() instanceof IllegalStateException);
+      }
+    }
+    assertEquals(2, ownAttempts.get());
+    assertEquals(1, sharedAttempts.get());
+    assertEquals(Collections.singletonList("failing"), deadLetters);
+
+    assertTrue(sharedSerializer.shutdown(SLEEP_TIME));
+    assertTrue(ownSerializer.shutdown(SLEEP_TIME));
+    assertTrue(otherSerializer.shutdown(SLEEP_TIME));
+    workerRuntime.shutdown();
+  }
+
+  @Test
+  public void testDelayedWork() throws Exception {
+    AsyncRequestSerializer<Integer> delayingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .setTimerTickDuration(5)
+            .build());
+    List<Integer> executionOrder = Collections.synchronizedList(new ArrayList<>());
+    long start = System.currentTimeMillis();
+    Future<Integer> first = delayingSerializer.submit("delayed-0", (Work<Integer>) () -> {
+      Thread.sleep(20);
+      executionOrder.add(0);
+      return 0;
+    });
+    CompletableFuture<Integer> late = delayingSerializer.submitDelayed("delayed-0", () -> {
+      executionOrder.add(2);
+      return 2;
+    }, 100);
+    CompletableFuture<Integer> early = delayingSerializer.submitDelayed("delayed-0", () -> {
+      executionOrder.add(1);
+      return 1;
+    }, 50);
+    assertFalse(early.isDone());
+    // both worker threads are busy once delayed request of another request key expires
+    Future<Integer> busy = delayingSerializer.submit("delayed-2", (Work<Integer>) () -> {
+      Thread.sleep(200);
+      return 4;
+    });
+    CompletableFuture<Integer> otherKey = delayingSerializer.submitDelayed("delayed-1", () -> 3, 10);
+    assertEquals(2, late.get(2 * SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertTrue(System.currentTimeMillis() - start >= 100);
+    assertEquals(1, early.get().intValue());
+    assertEquals(0, first.get().intValue());
+    assertEquals(Arrays.asList(0, 1, 2), executionOrder);
+    assertEquals(3, otherKey.get(2 * SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(4, busy.get().intValue());
+
+    List<CompletableFuture<Integer>> cancelled = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      cancelled.add(delayingSerializer.submitDelayed("delayed-3", () -> 5, 10 * SLEEP_TIME));
+    }
+    assertEquals(3, delayingSerializer.cancelDelayed("delayed-3"));
+    assertEquals(0, delayingSerializer.cancelDelayed("delayed-3"));
+    for (CompletableFuture<Integer> future : cancelled) {
+      assertTrue(future.isCancelled());
+    }
+    assertTrue(delayingSerializer.shutdown(SLEEP_TIME));
+  }
+
+  @Test
+  public void testResultCache() throws Exception {
+    AsyncRequestSerializer<Integer> cachingSerializer = new AsyncRequestSerializer<>(
+        new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(2)
+            .setResultCacheSize(2)
+            .build());
+    AtomicInteger balance = new AtomicInteger();
+    AtomicInteger readCount = new AtomicInteger();
+    CacheableWork<Integer> read = new CacheableWork<Integer>() {
+      @Override
+      public Integer call() throws Exception {
+        readCount.incrementAndGet();
+        return balance.get();
+      }
+
+      @Override
+      public Object getCacheKey() {
+        return "balance";
+      }
+    };
+    assertEquals(0, cachingSerializer.submit("account-0", read).get().intValue());
+    // result is cached once task is done, which may be just after its future is
+    cachingSerializer.flush("account-0").get();
+    assertEquals(0, cachingSerializer.submit("account-0", read).get().intValue());
+    assertEquals(1, readCount.get());
+
+    // write invalidates at submit time, so read submitted right after it waits for it
+    cachingSerializer.submit("account-0", (Work<Integer>) () -> {
+      Thread.sleep(20);
+      return balance.addAndGet(10);
+    });
+    assertEquals(10, cachingSerializer.submit("account-0", read).get().intValue());
+    cachingSerializer.flush("account-0").get();
+    assertEquals(10, cachingSerializer.submit("account-0", read).get().intValue());
+    assertEquals(2, readCount.get());
+
+    // least recently used is evicted
+    assertEquals(10, cachingSerializer.submit("account-1", read).get().intValue());
+    assertEquals(10, cachingSerializer.submit("account-2", read).get().intValue());
+    cachingSerializer.flushAll().get();
+    assertEquals(10, cachingSerializer.submit("account-0", read).get().intValue());
+    assertEquals(5, readCount.get());
+    assertEquals(2, cachingSerializer.getCacheHitCount());
+    assertEquals(5, cachingSerializer.getCacheMissCount());
+    assertEquals(2.0 / 7, cachingSerializer.getCacheHitRate(), 0.001);
+    cachingSerializer.shutdown(SLEEP_TIME);
+  }
 }
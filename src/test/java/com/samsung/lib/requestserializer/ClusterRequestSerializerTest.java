@@ -0,0 +1,133 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class ClusterRequestSerializerTest {
+
+  private static final int SLEEP_TIME = 5000;
+  private static final int KEY_COUNT = 50;
+  private static final int REQUEST_PER_KEY = 10;
+
+  @Test
+  public void testOwnershipHandoff() throws Exception {
+    LoopbackClusterTransport<Integer> transport = new LoopbackClusterTransport<>();
+    List<String> nodeIds = Arrays.asList("node-1", "node-2");
+    List<ClusterRequestSerializer<Integer>> nodes = new ArrayList<>();
+    for (String nodeId : Arrays.asList("node-1", "node-2", "node-3")) {
+      ClusterRequestSerializer<Integer> node = new ClusterRequestSerializer<>(nodeId, nodeIds,
+          new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(8).setWorkerThreadSharing(true).build(),
+          transport);
+      transport.register(node);
+      nodes.add(node);
+    }
+    ClusterRequestSerializer<Integer> entryNode = nodes.get(0);
+
+    Map<String, List<Integer>> executionOrder = new ConcurrentHashMap<>();
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int sequence = 0; sequence < REQUEST_PER_KEY; sequence++) {
+      if (sequence == REQUEST_PER_KEY / 2) {
+        // node-3 joins while requests are in-flight
+        for (ClusterRequestSerializer<Integer> node : nodes) {
+          node.setNodeIds(Arrays.asList("node-1", "node-2", "node-3"));
+        }
+      }
+      for (int key = 0; key < KEY_COUNT; key++) {
+        String requestKey = String.valueOf(key);
+        int currentSequence = sequence;
+        results.add(entryNode.submit(requestKey, (Work<Integer>) () -> {
+          Thread.sleep(20);
+          executionOrder.computeIfAbsent(requestKey, k -> Collections.synchronizedList(new ArrayList<>()))
+              .add(currentSequence);
+          return currentSequence;
+        }));
+      }
+    }
+    for (Future<Integer> result : results) {
+      result.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    }
+
+    Set<String> owners = new HashSet<>();
+    for (int key = 0; key < KEY_COUNT; key++) {
+      String requestKey = String.valueOf(key);
+      owners.add(entryNode.getOwnerNodeId(requestKey));
+      List<Integer> sequences = executionOrder.get(requestKey);
+      assertEquals(REQUEST_PER_KEY, sequences.size());
+      for (int sequence = 0; sequence < REQUEST_PER_KEY; sequence++) {
+        assertEquals(sequence, sequences.get(sequence).intValue());
+      }
+    }
+    assertTrue(owners.contains("node-3"));
+    for (ClusterRequestSerializer<Integer> node : nodes) {
+      assertTrue(node.shutdown(SLEEP_TIME));
+    }
+  }
+
+  @Test
+  public void testBlockedSubmitAndShutdown() throws Exception {
+    LoopbackClusterTransport<Integer> transport = new LoopbackClusterTransport<>();
+    ClusterRequestSerializer<Integer> node = new ClusterRequestSerializer<>("node-1", Arrays.asList("node-1"),
+        new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build(), transport);
+    transport.register(node);
+    CountDownLatch blocker = new CountDownLatch(1);
+    Future<Integer> blocking = node.submit("blocking", (Work<Integer>) () -> {
+      blocker.await();
+      return 0;
+    });
+    // only worker thread is taken, so submit of other request key waits for it
+    ExecutorService executorService = Executors.newSingleThreadExecutor();
+    Future<Future<Integer>> waiting = executorService.submit(() -> node.submit("waiting", (Work<Integer>) () -> 1));
+    Thread.sleep(50);
+    assertFalse(waiting.isDone());
+    // node is not locked meanwhile
+    ExecutorService ownerExecutorService = Executors.newSingleThreadExecutor();
+    Future<String> owner = ownerExecutorService.submit(() -> node.getOwnerNodeId("other"));
+    assertEquals("node-1", owner.get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    ownerExecutorService.shutdown();
+
+    blocker.countDown();
+    assertEquals(0, blocking.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(1, waiting.get(SLEEP_TIME, TimeUnit.MILLISECONDS).get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertTrue(node.shutdown(SLEEP_TIME));
+    try {
+      node.submit("blocking", (Work<Integer>) () -> 2);
+      fail("Request submitted after shutdown should be rejected");
+    } catch (AsyncRequestSerializerException asyncRequestSerializerException) {
+      assertTrue(asyncRequestSerializerException.getMessage().contains("shut down"));
+    }
+    executorService.shutdown();
+  }
+}
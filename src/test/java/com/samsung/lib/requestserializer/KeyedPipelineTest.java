@@ -0,0 +1,170 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class KeyedPipelineTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(KeyedPipelineTest.class);
+
+  private static final int SLEEP_TIME = 5000;
+  private static final int STAGE_TIME = 50;
+  private static final int ITEM_COUNT = 10;
+
+  @Test
+  public void testStagesOverlap() throws Exception {
+    List<String> persisted = Collections.synchronizedList(new ArrayList<>());
+    AsyncRequestSerializerConfig config = new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(2).build();
+    KeyedPipeline<Integer, String> pipeline = new KeyedPipeline.Builder<Integer, Integer>()
+        .addStage("decode", (requestKey, item) -> {
+          Thread.sleep(STAGE_TIME);
+          return "item-" + item;
+        }, config)
+        .addStage("enrich", (requestKey, item) -> {
+          Thread.sleep(STAGE_TIME);
+          return requestKey + "/" + item;
+        }, config)
+        .addStage("persist", (requestKey, item) -> {
+          Thread.sleep(STAGE_TIME);
+          persisted.add(item);
+          return item;
+        }, config)
+        .build();
+
+    long st = System.currentTimeMillis();
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 0; i < ITEM_COUNT; i++) {
+      results.add(pipeline.submit("key", i));
+    }
+    for (int i = 0; i < ITEM_COUNT; i++) {
+      assertEquals("key/item-" + i, results.get(i).get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+      assertEquals("key/item-" + i, persisted.get(i));
+    }
+    long elapsed = System.currentTimeMillis() - st;
+    LOGGER.info("{} items of a request key through 3 stages took {} ms.", ITEM_COUNT, elapsed);
+    // stages overlap, rather than taking 3 * STAGE_TIME per item
+    assertTrue(elapsed < 2 * STAGE_TIME * ITEM_COUNT);
+    assertTrue(pipeline.shutdown(SLEEP_TIME));
+  }
+
+  @Test
+  public void testStageFailure() throws Exception {
+    AsyncRequestSerializerConfig config = new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build();
+    KeyedPipeline<Integer, Integer> pipeline = new KeyedPipeline.Builder<Integer, Integer>()
+        .addStage("validate", (requestKey, item) -> {
+          if (item < 0) {
+            throw new IllegalArgumentException("Negative item " + item);
+          }
+          return item;
+        }, config)
+        .addStage("double", (requestKey, item) -> 2 * item, config)
+        .build();
+
+    CompletableFuture<Integer> failed = pipeline.submit("key", -1);
+    CompletableFuture<Integer> passed = pipeline.submit("key", 1);
+    assertEquals(2, passed.get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    try {
+      failed.get(SLEEP_TIME, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException executionException) {
+      assertTrue(executionException.getCause() instanceof IllegalArgumentException);
+    }
+    assertTrue(failed.isCompletedExceptionally());
+    pipeline.shutdown(SLEEP_TIME);
+  }
+
+  @Test
+  public void testRetriedStagePassesItemOnce() throws Exception {
+    AsyncRequestSerializerConfig config = new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build();
+    AtomicInteger attempts = new AtomicInteger();
+    List<Integer> received = Collections.synchronizedList(new ArrayList<>());
+    KeyedPipeline<Integer, Integer> pipeline = new KeyedPipeline.Builder<Integer, Integer>()
+        .addStage("flaky", (requestKey, item) -> {
+          if (attempts.incrementAndGet() == 1) {
+            throw new IllegalStateException("Failing first attempt");
+          }
+          return item;
+        }, new AsyncRequestSerializerConfig.Builder()
+            .setWorkerThreadPoolSize(1)
+            .setRetryPolicy(new RetryPolicy.Builder().setMaxAttempts(2).setInitialBackoff(10).build())
+            .build())
+        .addStage("collect", (requestKey, item) -> {
+          received.add(item);
+          return item;
+        }, config)
+        .build();
+
+    assertEquals(1, pipeline.submit("key", 1).get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(2, pipeline.submit("key", 2).get(SLEEP_TIME, TimeUnit.MILLISECONDS).intValue());
+    assertEquals(3, attempts.get());
+    assertEquals(Arrays.asList(1, 2), received);
+    assertTrue(pipeline.shutdown(SLEEP_TIME));
+  }
+
+  @Test
+  public void testBusyNextStageDoesNotBlockStage() throws Exception {
+    AsyncRequestSerializerConfig config = new AsyncRequestSerializerConfig.Builder().setWorkerThreadPoolSize(1).build();
+    CountDownLatch blocker = new CountDownLatch(1);
+    List<String> decoded = Collections.synchronizedList(new ArrayList<>());
+    KeyedPipeline<String, String> pipeline = new KeyedPipeline.Builder<String, String>()
+        .addStage("decode", (requestKey, item) -> {
+          decoded.add(item);
+          return item;
+        }, config)
+        .addStage("persist", (requestKey, item) -> {
+          if (item.equals("blocking")) {
+            blocker.await();
+          }
+          return item;
+        }, config)
+        .build();
+
+    CompletableFuture<String> blocking = pipeline.submit("key-0", "blocking");
+    // only worker thread of next stage is busy, so decoded items wait for it, not decode stage
+    List<CompletableFuture<String>> results = new ArrayList<>();
+    for (int i = 1; i <= 3; i++) {
+      results.add(pipeline.submit("key-" + i, "item-" + i));
+    }
+    long deadline = System.currentTimeMillis() + SLEEP_TIME;
+    while (decoded.size() < 4 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(4, decoded.size());
+    assertFalse(blocking.isDone());
+    blocker.countDown();
+    assertEquals("blocking", blocking.get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    for (int i = 1; i <= 3; i++) {
+      assertEquals("item-" + i, results.get(i - 1).get(SLEEP_TIME, TimeUnit.MILLISECONDS));
+    }
+    assertTrue(pipeline.shutdown(SLEEP_TIME));
+  }
+}
@@ -0,0 +1,95 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class OffsetWatermarkTrackerTest {
+
+  private static final int OFFSET_COUNT = 10000;
+
+  @Test
+  public void testOutOfOrderCompletion() {
+    List<Long> commits = new ArrayList<>();
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker((partition, offset) -> commits.add(offset));
+    List<Long> offsets = new ArrayList<>();
+    for (long offset = 100; offset < 100 + OFFSET_COUNT; offset++) {
+      tracker.track(0, offset);
+      offsets.add(offset);
+    }
+    Collections.shuffle(offsets, new Random(7));
+    for (long offset : offsets) {
+      tracker.complete(0, offset);
+    }
+    assertEquals(100 + OFFSET_COUNT - 1, tracker.getCommittedOffset(0));
+    for (int index = 1; index < commits.size(); index++) {
+      assertEquals(true, commits.get(index) > commits.get(index - 1));
+    }
+  }
+
+  @Test
+  public void testSkippedOffsets() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker(null);
+    tracker.track(3, 10);
+    tracker.track(3, 20);
+    tracker.track(3, 500);
+    // offsets before first tracked one are not pending
+    assertEquals(9, tracker.getCommittedOffset(3));
+    tracker.complete(3, 20);
+    assertEquals(9, tracker.getCommittedOffset(3));
+    tracker.complete(3, 10);
+    // 11 to 19 and 21 to 499 were never tracked
+    assertEquals(499, tracker.getCommittedOffset(3));
+    tracker.complete(3, 500);
+    assertEquals(500, tracker.getCommittedOffset(3));
+    assertEquals(-1, tracker.getCommittedOffset(4));
+  }
+
+  @Test
+  public void testLargeGap() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker(null);
+    tracker.track(0, 10);
+    tracker.track(0, 1L << 40);
+    tracker.track(0, (1L << 40) + 1);
+    tracker.complete(0, 1L << 40);
+    assertEquals(9, tracker.getCommittedOffset(0));
+    tracker.complete(0, 10);
+    assertEquals(1L << 40, tracker.getCommittedOffset(0));
+    tracker.complete(0, (1L << 40) + 1);
+    assertEquals((1L << 40) + 1, tracker.getCommittedOffset(0));
+  }
+
+  @Test
+  public void testUntrack() {
+    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker(null);
+    tracker.track(0, 0);
+    tracker.track(0, 1);
+    tracker.untrack(0, 1);
+    tracker.track(0, 2);
+    tracker.complete(0, 0);
+    // untracked offset is like one never submitted
+    assertEquals(1, tracker.getCommittedOffset(0));
+    tracker.complete(0, 2);
+    assertEquals(2, tracker.getCommittedOffset(0));
+  }
+}
@@ -0,0 +1,86 @@
+/*
+  * Copyright (c) 2018 Samsung Electronics Co., Ltd All Rights Reserved
+  *
+  * Licensed under the Apache License, Version 2.0 (the License);
+  * you may not use this file except in compliance with the License.
+  * You may obtain a copy of the License at
+  *
+  * http://www.apache.org/licenses/LICENSE-2.0
+  *
+  * Unless required by applicable law or agreed to in writing, software
+  * distributed under the License is distributed on an AS IS BASIS,
+  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  * See the License for the specific language governing permissions and
+  * limitations under the License.
+ */
+package com.samsung.lib.requestserializer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class RequestKeyStateStoreTest {
+
+  private static final int MAX_SIZE = 4;
+
+  @Test
+  public void testSizeEviction() {
+    RequestKeyStateStore store = new RequestKeyStateStore(
+        new AsyncRequestSerializerConfig.Builder().setRequestKeyStateMaxSize(MAX_SIZE).build(), requestKey -> false);
+    for (int key = 0; key < 100; key++) {
+      store.getRequestKeyState("key-" + key).set(key);
+      assertTrue(store.size() <= MAX_SIZE);
+    }
+    // most recently accessed state is never the least recently accessed one
+    assertEquals(99, store.getRequestKeyState("key-99").get());
+  }
+
+  @Test
+  public void testActiveRequestKeyNotEvicted() {
+    Set<String> activeRequestKeys = Collections.synchronizedSet(new HashSet<>());
+    RequestKeyStateStore store = new RequestKeyStateStore(
+        new AsyncRequestSerializerConfig.Builder().setRequestKeyStateMaxSize(MAX_SIZE).build(),
+        activeRequestKeys::contains);
+    activeRequestKeys.add("active");
+    store.getRequestKeyState("active").set("kept");
+    for (int key = 0; key < 100; key++) {
+      store.getRequestKeyState("key-" + key).set(key);
+    }
+    assertEquals("kept", store.getRequestKeyState("active").get());
+
+    // store exceeds its size, rather than evicting state in use
+    for (int key = 0; key < 2 * MAX_SIZE; key++) {
+      activeRequestKeys.add("busy-" + key);
+      store.getRequestKeyState("busy-" + key).set(key);
+    }
+    for (int key = 0; key < 2 * MAX_SIZE; key++) {
+      assertEquals(key, store.getRequestKeyState("busy-" + key).get());
+    }
+    assertTrue(store.size() > MAX_SIZE);
+
+    // once inactive, they are evicted again
+    activeRequestKeys.clear();
+    store.getRequestKeyState("idle").set("idle");
+    assertEquals(MAX_SIZE, store.size());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    RequestKeyStateStore store = new RequestKeyStateStore(
+        new AsyncRequestSerializerConfig.Builder().setRequestKeyStateExpiry(200).build(), requestKey -> false);
+    store.getRequestKeyState("expiring").set("old");
+    store.getRequestKeyState("accessed").set("fresh");
+    for (int i = 0; i < 6; i++) {
+      Thread.sleep(50);
+      assertEquals("fresh", store.getRequestKeyState("accessed").get());
+    }
+    // not accessed within expiry, so started afresh
+    assertNull(store.getRequestKeyState("expiring").get());
+  }
+}